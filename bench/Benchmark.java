@@ -0,0 +1,47 @@
+/**
+ * An operation measured by BenchmarkRunner. The runner calls run() over and
+ * over, first to warm up and then for a number of timed iterations; run()
+ * reports how many operations (ie. events or heap updates) it did, so results
+ * come out as operations per second.
+ *
+ * @author loganlinn
+ *
+ */
+public abstract class Benchmark {
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the name results are reported and compared under
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Prepares the state run() works on. Not timed.
+	 *
+	 * @throws Exception
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Runs one batch of the measured operation
+	 *
+	 * @return the number of operations done
+	 * @throws Exception
+	 */
+	public abstract long run() throws Exception;
+
+	/**
+	 * Releases the state after the last iteration. Not timed.
+	 *
+	 * @throws Exception
+	 */
+	public void tearDown() throws Exception {
+	}
+}
@@ -0,0 +1,195 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Runs benchmarks the way a JMH harness would, without the dependency: every
+ * benchmark is warmed up for a while so the JIT settles, then timed over a
+ * number of iterations of at least a minimum length. Reported are operations
+ * per second (mean and standard deviation over the iterations) and bytes
+ * allocated per operation, read from the thread's allocation counter where the
+ * JVM provides one.
+ *
+ * Results can be saved as a properties file of name=operations per second and
+ * used as the baseline of a later run, which then also prints the change.
+ *
+ * @author loganlinn
+ *
+ */
+public class BenchmarkRunner {
+	// com.sun.management.ThreadMXBean methods, looked up by reflection since
+	// not every JVM has the class; null if there is no allocation counter
+	private static final ThreadMXBean THREADS = ManagementFactory
+			.getThreadMXBean();
+	private static final Method ALLOCATION_ENABLED;
+	private static final Method ALLOCATED_BYTES;
+	static {
+		Method enabled = null;
+		Method allocated = null;
+		try {
+			Class<?> beanClass = Class
+					.forName("com.sun.management.ThreadMXBean");
+			if (beanClass.isInstance(THREADS)
+					&& ((Boolean) beanClass.getMethod(
+							"isThreadAllocatedMemorySupported").invoke(THREADS))
+							.booleanValue()) {
+				enabled = beanClass
+						.getMethod("isThreadAllocatedMemoryEnabled");
+				allocated = beanClass.getMethod("getThreadAllocatedBytes",
+						long.class);
+			}
+		} catch (Exception e) {
+			enabled = null; // No allocation counter
+			allocated = null;
+		}
+		ALLOCATION_ENABLED = enabled;
+		ALLOCATED_BYTES = allocated;
+	}
+
+	private final long warmupNanos;
+	private final long iterationNanos;
+	private final int numIterations;
+	private final Properties results = new Properties();
+	private Properties baseline;
+
+	/**
+	 * @param warmupMillis
+	 *            time to run each benchmark before measuring
+	 * @param iterationMillis
+	 *            minimum time of a measured iteration
+	 * @param numIterations
+	 *            measured iterations per benchmark
+	 */
+	public BenchmarkRunner(long warmupMillis, long iterationMillis,
+			int numIterations) {
+		this.warmupNanos = warmupMillis * 1000000L;
+		this.iterationNanos = iterationMillis * 1000000L;
+		this.numIterations = numIterations;
+	}
+
+	/**
+	 * Loads results saved by an earlier run to compare against
+	 *
+	 * @param filePath
+	 * @throws IOException
+	 */
+	public void loadBaseline(String filePath) throws IOException {
+		baseline = new Properties();
+		InputStream in = new FileInputStream(filePath);
+		try {
+			baseline.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the results of this run
+	 *
+	 * @param filePath
+	 * @throws IOException
+	 */
+	public void saveResults(String filePath) throws IOException {
+		OutputStream out = new FileOutputStream(filePath);
+		try {
+			results.store(out, "operations per second");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Measures a benchmark and prints its result line
+	 *
+	 * @param benchmark
+	 * @throws Exception
+	 */
+	public void run(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			// Warm up
+			long start = System.nanoTime();
+			while (System.nanoTime() - start < warmupNanos) {
+				benchmark.run();
+			}
+
+			double[] rates = new double[numIterations];
+			long totalOperations = 0;
+			long allocatedBefore = allocatedBytes();
+			for (int i = 0; i < numIterations; i++) {
+				long operations = 0;
+				long elapsed;
+				start = System.nanoTime();
+				do {
+					operations += benchmark.run();
+					elapsed = System.nanoTime() - start;
+				} while (elapsed < iterationNanos);
+				rates[i] = operations * 1e9 / elapsed;
+				totalOperations += operations;
+			}
+			long allocatedAfter = allocatedBytes();
+
+			report(benchmark.getName(), rates, allocatedBefore < 0
+					|| allocatedAfter < 0 ? -1
+					: (double) (allocatedAfter - allocatedBefore)
+							/ totalOperations);
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	private void report(String name, double[] rates, double bytesPerOperation) {
+		double mean = 0;
+		for (double rate : rates) {
+			mean += rate;
+		}
+		mean /= rates.length;
+		double variance = 0;
+		for (double rate : rates) {
+			variance += (rate - mean) * (rate - mean);
+		}
+		double deviation = rates.length > 1 ? Math.sqrt(variance
+				/ (rates.length - 1)) : 0;
+		results.setProperty(name, Double.toString(mean));
+
+		StringBuilder line = new StringBuilder(String.format(Locale.US,
+				"%-40s %14.1f ops/s +- %5.1f%%", name, mean, 100 * deviation
+						/ mean));
+		if (bytesPerOperation >= 0) {
+			line.append(String.format(Locale.US, " %10.1f B/op",
+					bytesPerOperation));
+		}
+		if (baseline != null && baseline.getProperty(name) != null) {
+			double base = Double.parseDouble(baseline.getProperty(name));
+			line.append(String.format(Locale.US, " %+7.1f%% vs baseline",
+					100 * (mean - base) / base));
+		}
+		System.out.println(line);
+	}
+
+	/**
+	 * @return bytes allocated by this thread so far, or -1 if the JVM does
+	 *         not count them
+	 */
+	private static long allocatedBytes() {
+		if (ALLOCATED_BYTES == null) {
+			return -1;
+		}
+		try {
+			if (!((Boolean) ALLOCATION_ENABLED.invoke(THREADS)).booleanValue()) {
+				return -1;
+			}
+			return ((Long) ALLOCATED_BYTES.invoke(THREADS, Thread
+					.currentThread().getId())).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
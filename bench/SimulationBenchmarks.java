@@ -0,0 +1,269 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The benchmark suite: ReactionHeap updates, whole runs with every engine,
+ * ReactionDependencyTable construction and SimulationOutput throughput, on
+ * synthetic networks of growing size, plus runs over sparse and highly coupled
+ * NetworkGenerator networks. Run from the compiled classes of src and
+ * bench:
+ *
+ * <pre>
+ * java SimulationBenchmarks [-quick] [-filter text] [-save results.properties]
+ *                           [-baseline results.properties]
+ * </pre>
+ *
+ * -quick runs only the smaller networks with shorter iterations, -filter runs
+ * only benchmarks whose name contains the text, -save keeps the results, and
+ * -baseline compares against results kept by an earlier run.
+ *
+ * @author loganlinn
+ *
+ */
+public class SimulationBenchmarks {
+	private static final long SEED = 42;
+
+	// Species and reaction counts of the networks
+	private static final int[][] SIZES = { { 100, 1000 }, { 1000, 10000 },
+			{ 10000, 10000 }, { 10000, 100000 } };
+	private static final int QUICK_SIZES = 2;
+
+	// Fan-outs of the generated networks, sparse to highly coupled
+	private static final double[] FANOUTS = { 2, 200 };
+
+	private static final String[] ENGINES = {
+			Simulation.ENGINE_NEXT_REACTION, Simulation.ENGINE_DIRECT,
+			Simulation.ENGINE_OPTIMIZED_DIRECT,
+			Simulation.ENGINE_COMPOSITION_REJECTION,
+			Simulation.ENGINE_TAU_LEAPING, Simulation.ENGINE_HYBRID };
+
+	private static final int HEAP_UPDATES = 1 << 14;
+	private static final int OUTPUT_RECORDS = 1 << 14;
+
+	public static void main(String[] args) throws Exception {
+		boolean quick = false;
+		String filter = null;
+		String savePath = null;
+		String baselinePath = null;
+		for (int i = 0; i < args.length; i++) {
+			if ("-quick".equals(args[i])) {
+				quick = true;
+			} else if ("-filter".equals(args[i]) && i + 1 < args.length) {
+				filter = args[++i];
+			} else if ("-save".equals(args[i]) && i + 1 < args.length) {
+				savePath = args[++i];
+			} else if ("-baseline".equals(args[i]) && i + 1 < args.length) {
+				baselinePath = args[++i];
+			} else {
+				System.err.println("Unknown argument: " + args[i]);
+				return;
+			}
+		}
+
+		BenchmarkRunner runner = quick ? new BenchmarkRunner(500, 250, 3)
+				: new BenchmarkRunner(3000, 1000, 5);
+		if (baselinePath != null) {
+			runner.loadBaseline(baselinePath);
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		int numSizes = quick ? QUICK_SIZES : SIZES.length;
+		for (int i = 0; i < numSizes; i++) {
+			int numSpecies = SIZES[i][0];
+			int numReactions = SIZES[i][1];
+			String size = "N=" + numSpecies + ",M=" + numReactions;
+			benchmarks.add(heapUpdates(size, numSpecies, numReactions));
+			for (String engine : ENGINES) {
+				benchmarks.add(simulationRun(size, numSpecies, numReactions,
+						engine));
+			}
+			benchmarks.add(dependencyTable(size, numSpecies, numReactions));
+		}
+		for (double fanout : FANOUTS) {
+			benchmarks.add(generatedRun(fanout, Simulation.ENGINE_NEXT_REACTION));
+			benchmarks.add(generatedRun(fanout, Simulation.ENGINE_DIRECT));
+		}
+		benchmarks.add(output("N=100,M=1000", 100, 1000));
+
+		for (Benchmark benchmark : benchmarks) {
+			if (filter == null || benchmark.getName().contains(filter)) {
+				runner.run(benchmark);
+			}
+		}
+
+		if (savePath != null) {
+			runner.saveResults(savePath);
+		}
+	}
+
+	/**
+	 * ReactionHeap operations as the Next Reaction Method does them: the
+	 * earliest reaction gets a later fire time, and so do two other reactions
+	 * standing in for its dependents. One operation is one updateReaction().
+	 */
+	private static Benchmark heapUpdates(String size, final int numSpecies,
+			final int numReactions) {
+		return new Benchmark("heap/update " + size) {
+			private Simulation.Reaction[] reactions;
+			private ReactionHeap heap;
+			private RandomStream random;
+
+			@Override
+			public void setUp() throws Exception {
+				Simulation simulation = new Simulation(SyntheticNetworks
+						.create(numSpecies, numReactions, 1, SEED), null);
+				reactions = simulation.getReactions();
+				random = new Xoshiro256StarStar(SEED);
+				for (Simulation.Reaction reaction : reactions) {
+					reaction.setFireTime(random.nextExponential());
+				}
+				heap = new ReactionHeap(simulation);
+			}
+
+			@Override
+			public long run() {
+				for (int i = 0; i < HEAP_UPDATES; i++) {
+					Simulation.Reaction next = heap.getNextReaction();
+					double now = next.getFireTime();
+					next.setFireTime(now + random.nextExponential());
+					heap.updateReaction(next);
+					for (int j = 0; j < 2; j++) {
+						Simulation.Reaction dependent = reactions[(int) (random
+								.nextDouble() * reactions.length)];
+						dependent.setFireTime(now + random.nextExponential());
+						heap.updateReaction(dependent);
+					}
+				}
+				return 3 * HEAP_UPDATES;
+			}
+		};
+	}
+
+	/**
+	 * Whole runs with Simulation.run(), one unit of time (about 10^5 events)
+	 * each. One operation is one reaction firing.
+	 */
+	private static Benchmark simulationRun(String size, final int numSpecies,
+			final int numReactions, final String engine) {
+		return new Benchmark("run/" + engine + " " + size) {
+			private Simulation simulation;
+			private long run = 0;
+
+			@Override
+			public void setUp() throws Exception {
+				simulation = new Simulation(SyntheticNetworks.create(
+						numSpecies, numReactions, 1, SEED), null);
+				simulation.setEngine(engine);
+			}
+
+			@Override
+			public long run() {
+				simulation.setSeed(EnsembleRunner.runSeed(SEED, run++));
+				simulation.resetSimulation();
+				simulation.run();
+				long events = 0;
+				for (long fireCount : simulation.getReactionFireCounts()) {
+					events += fireCount;
+				}
+				return events;
+			}
+		};
+	}
+
+	/**
+	 * Whole runs over a NetworkGenerator network of 1000 species and 10000
+	 * reactions of mixed order, with rates spread over two orders of
+	 * magnitude. One operation is one reaction firing.
+	 */
+	private static Benchmark generatedRun(final double fanout,
+			final String engine) {
+		return new Benchmark("run/" + engine + " generated fanout="
+				+ (int) fanout) {
+			private Simulation simulation;
+			private long run = 0;
+
+			@Override
+			public void setUp() throws Exception {
+				NetworkGenerator generator = new NetworkGenerator(1000, 10000,
+						SEED);
+				generator.setFanout(fanout);
+				generator.setRateSpread(2);
+				generator.setSimulationLength(1);
+				simulation = new Simulation(generator.generate(), null);
+				simulation.setEngine(engine);
+			}
+
+			@Override
+			public long run() {
+				simulation.setSeed(EnsembleRunner.runSeed(SEED, run++));
+				simulation.resetSimulation();
+				simulation.run();
+				long events = 0;
+				for (long fireCount : simulation.getReactionFireCounts()) {
+					events += fireCount;
+				}
+				return events;
+			}
+		};
+	}
+
+	/**
+	 * ReactionDependencyTable construction. One operation is one reaction
+	 * mapped.
+	 */
+	private static Benchmark dependencyTable(String size,
+			final int numSpecies, final int numReactions) {
+		return new Benchmark("dependencies/build " + size) {
+			private ReactionNetwork network;
+
+			@Override
+			public void setUp() throws Exception {
+				network = new Simulation(SyntheticNetworks.create(numSpecies,
+						numReactions, 1, SEED), null).getNetwork();
+			}
+
+			@Override
+			public long run() {
+				new ReactionDependencyTable(network, numSpecies);
+				return numReactions;
+			}
+		};
+	}
+
+	/**
+	 * Trajectory records written by SimulationOutput, ten watched species
+	 * each. One operation is one record.
+	 */
+	private static Benchmark output(String size, final int numSpecies,
+			final int numReactions) {
+		return new Benchmark("output/record " + size) {
+			private File file;
+			private Simulation simulation;
+			private SimulationOutput output;
+
+			@Override
+			public void setUp() throws Exception {
+				file = File.createTempFile("benchmark", ".txt");
+				simulation = new Simulation(SyntheticNetworks.create(
+						numSpecies, numReactions, 1, SEED), file.getPath());
+				output = simulation.getSimulationOutput();
+			}
+
+			@Override
+			public long run() {
+				for (int i = 0; i < OUTPUT_RECORDS; i++) {
+					simulation.setCurrentTime(i * 1e-3);
+					output.populationChanged();
+				}
+				return OUTPUT_RECORDS;
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				output.closeOutput();
+				file.delete();
+			}
+		};
+	}
+}
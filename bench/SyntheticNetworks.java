@@ -0,0 +1,107 @@
+/**
+ * Builds synthetic models for the benchmarks. Every species starts at 1000
+ * molecules; reactions are conversions Si -&gt; Sj, and dimerizations Si + Sj
+ * -&gt; Sk paired with their dissociation Sk -&gt; Si + Sj. Every reaction conserves
+ * the number of molecules, so the network neither dies out nor grows without
+ * bound. Rates are scaled so the total propensity is about 10^5 per unit of
+ * time whatever the size, ie) one unit of time is about 10^5 events.
+ *
+ * @author loganlinn
+ *
+ */
+public class SyntheticNetworks {
+	private static final int INITIAL_POPULATION = 1000;
+	private static final double EVENTS_PER_TIME = 1e5;
+	private static final int MAX_WATCHED = 10;
+
+	/**
+	 * @param numSpecies
+	 * @param numReactions
+	 * @param simulationLength
+	 * @param seed
+	 * @return the model; the first (up to 10) species are watched
+	 */
+	public static SimulationModel create(int numSpecies, int numReactions,
+			int simulationLength, long seed) {
+		RandomStream random = new Xoshiro256StarStar(seed);
+		int[] populations = new int[numSpecies];
+		for (int s = 0; s < numSpecies; s++) {
+			populations[s] = INITIAL_POPULATION;
+		}
+		int[] speciesToOutput = new int[Math.min(MAX_WATCHED, numSpecies)];
+		for (int i = 0; i < speciesToOutput.length; i++) {
+			speciesToOutput[i] = i + 1;
+		}
+
+		// Propensity of every reaction at the initial populations
+		double propensity = EVENTS_PER_TIME / numReactions;
+
+		double[] rates = new double[numReactions];
+		int[] reactantOffsets = new int[numReactions + 1];
+		int[] reactantSpecies = new int[2 * numReactions];
+		int[] reactantCoefficients = new int[2 * numReactions];
+		int[] productOffsets = new int[numReactions + 1];
+		int[] productSpecies = new int[2 * numReactions];
+		int[] productCoefficients = new int[2 * numReactions];
+		int numReactantTerms = 0;
+		int numProductTerms = 0;
+		for (int r = 0; r < numReactions; r++) {
+			reactantOffsets[r] = numReactantTerms;
+			productOffsets[r] = numProductTerms;
+			int a = species(random, numSpecies);
+			int b = species(random, numSpecies);
+			if (r % 2 == 0 || r + 1 == numReactions) {
+				// Conversion
+				rates[r] = propensity / INITIAL_POPULATION;
+				reactantSpecies[numReactantTerms] = a;
+				reactantCoefficients[numReactantTerms++] = 1;
+				productSpecies[numProductTerms] = b;
+				productCoefficients[numProductTerms++] = 1;
+			} else {
+				// Dimerization here, and its dissociation as the next reaction
+				int c = species(random, numSpecies);
+				rates[r] = propensity / INITIAL_POPULATION
+						/ INITIAL_POPULATION;
+				reactantSpecies[numReactantTerms] = a;
+				reactantCoefficients[numReactantTerms++] = 1;
+				reactantSpecies[numReactantTerms] = b;
+				reactantCoefficients[numReactantTerms++] = 1;
+				productSpecies[numProductTerms] = c;
+				productCoefficients[numProductTerms++] = 1;
+
+				r++;
+				reactantOffsets[r] = numReactantTerms;
+				productOffsets[r] = numProductTerms;
+				rates[r] = propensity / INITIAL_POPULATION;
+				reactantSpecies[numReactantTerms] = c;
+				reactantCoefficients[numReactantTerms++] = 1;
+				productSpecies[numProductTerms] = a;
+				productCoefficients[numProductTerms++] = 1;
+				productSpecies[numProductTerms] = b;
+				productCoefficients[numProductTerms++] = 1;
+			}
+		}
+		reactantOffsets[numReactions] = numReactantTerms;
+		productOffsets[numReactions] = numProductTerms;
+
+		return new SimulationModel(simulationLength, populations,
+				speciesToOutput, rates, reactantOffsets, trim(reactantSpecies,
+						numReactantTerms), trim(reactantCoefficients,
+						numReactantTerms), productOffsets, trim(productSpecies,
+						numProductTerms), trim(productCoefficients,
+						numProductTerms));
+	}
+
+	/**
+	 * @return a random species ID
+	 */
+	private static int species(RandomStream random, int numSpecies) {
+		return 1 + (int) (random.nextDouble() * numSpecies);
+	}
+
+	private static int[] trim(int[] values, int length) {
+		int[] trimmed = new int[length];
+		System.arraycopy(values, 0, trimmed, 0, length);
+		return trimmed;
+	}
+}
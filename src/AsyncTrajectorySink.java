@@ -0,0 +1,402 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands trajectory records to another sink on a writer thread of its own, so
+ * the simulating thread never waits for the disk. Records go through a
+ * single-producer, single-consumer ring of primitive arrays: the simulating
+ * thread copies the time and the watched populations into the next slot and
+ * publishes it by advancing the head; the writer thread passes slots on to
+ * the wrapped sink and advances the tail. Neither side takes a lock.
+ *
+ * When the writer falls behind and the ring fills up, the back-pressure
+ * policy decides what happens to new records:
+ *
+ * <pre>
+ * BLOCK   wait for the writer; nothing is lost
+ * SAMPLE  keep only the latest record and write it once there is room, so
+ *         the trajectory degrades to being sampled at the pace the disk keeps
+ * SPILL   append records to a local spill file, and put a marker in the ring
+ *         where they belong; the writer reads them back at the marker
+ * </pre>
+ *
+ * endRun() goes through the ring too, so it stays in order with the records.
+ * flush() waits until the writer has passed on everything, after which the
+ * wrapped sink may be used from the calling thread.
+ *
+ * @author loganlinn
+ *
+ */
+public class AsyncTrajectorySink implements TrajectorySink {
+	public static final String BLOCK = "block";
+	public static final String SAMPLE = "sample";
+	public static final String SPILL = "spill";
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+
+	private static final int POLICY_BLOCK = 0;
+	private static final int POLICY_SAMPLE = 1;
+	private static final int POLICY_SPILL = 2;
+
+	// Slot markers: a record, the end of a run, or a count of spilled records
+	private static final long RECORD = 0;
+	private static final long END_RUN = -1;
+
+	private static final int SPINS = 64; // Before yielding the processor
+	private static final long PARK_NANOS = 50000;
+
+	private final TrajectorySink sink;
+	private final int policy;
+	private final int numSpecies;
+	private final int mask;
+	private final double[] times;
+	private final int[] populations;
+	private final long[] markers;
+	private final AtomicLong head = new AtomicLong(); // Next slot to fill
+	private final AtomicLong tail = new AtomicLong(); // Next slot to write
+	private final Thread writer;
+	private volatile boolean closed = false;
+	private volatile IOException error;
+
+	// Producer side
+	private long cachedTail = 0; // Last tail seen, to avoid reading it often
+	private boolean hasLatest = false; // SAMPLE: a record waiting for room
+	private double latestTime;
+	private final int[] latest;
+	private long droppedRecords = 0;
+	private File spillFile;
+	private DataOutputStream spillOut;
+	private long unmarkedSpills = 0; // SPILL: records spilled since the marker
+	private long spilledRecords = 0;
+
+	// Writer side
+	private DataInputStream spillIn;
+	private final int[] writerPopulations;
+
+	/**
+	 * AsyncTrajectorySink constructor. Starts the writer thread.
+	 *
+	 * @param sink
+	 *            sink to pass the records on to
+	 * @param numSpecies
+	 *            number of watched species in a record
+	 * @param capacity
+	 *            number of records the ring holds, rounded up to a power of
+	 *            two
+	 * @param policy
+	 *            BLOCK, SAMPLE or SPILL
+	 */
+	public AsyncTrajectorySink(TrajectorySink sink, int numSpecies,
+			int capacity, String policy) {
+		if (BLOCK.equals(policy)) {
+			this.policy = POLICY_BLOCK;
+		} else if (SAMPLE.equals(policy)) {
+			this.policy = POLICY_SAMPLE;
+		} else if (SPILL.equals(policy)) {
+			this.policy = POLICY_SPILL;
+		} else {
+			throw new IllegalArgumentException("Unknown back-pressure policy: "
+					+ policy);
+		}
+		this.sink = sink;
+		this.numSpecies = numSpecies;
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		times = new double[size];
+		populations = new int[size * numSpecies];
+		markers = new long[size];
+		latest = new int[numSpecies];
+		writerPopulations = new int[numSpecies];
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "trajectory writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void record(double time, int[] populations) throws IOException {
+		checkError();
+		if (policy == POLICY_SPILL && unmarkedSpills > 0) {
+			// Keep the order: spilled records must be marked first
+			if (!hasRoom()) {
+				spill(time, populations);
+				return;
+			}
+			publishMarker();
+		}
+		if (policy == POLICY_SAMPLE && hasLatest) {
+			if (!hasRoom()) {
+				keepLatest(time, populations);
+				return;
+			}
+			publish(latestTime, latest, RECORD);
+			hasLatest = false;
+		}
+
+		if (!hasRoom()) {
+			if (policy == POLICY_SAMPLE) {
+				keepLatest(time, populations);
+				return;
+			} else if (policy == POLICY_SPILL) {
+				spill(time, populations);
+				return;
+			}
+			waitForRoom();
+		}
+		publish(time, populations, RECORD);
+	}
+
+	@Override
+	public void endRun() throws IOException {
+		publishPending();
+		waitForRoom();
+		publish(0, null, END_RUN);
+	}
+
+	/**
+	 * Waits until the writer thread has passed every record on, then flushes
+	 * the wrapped sink
+	 */
+	@Override
+	public void flush() throws IOException {
+		publishPending();
+		long published = head.get();
+		int spins = 0;
+		while (tail.get() != published) {
+			checkError();
+			spins = idle(spins);
+		}
+		checkError();
+		sink.flush();
+	}
+
+	/**
+	 * Flushes, stops the writer thread and closes the wrapped sink
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			closed = true;
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			closeSpill();
+			sink.close();
+		}
+	}
+
+	/**
+	 * @return the sink records are passed on to
+	 */
+	public TrajectorySink getSink() {
+		return sink;
+	}
+
+	/**
+	 * @return the number of records SAMPLE dropped for a later one
+	 */
+	public long getDroppedRecords() {
+		return droppedRecords;
+	}
+
+	/**
+	 * @return the number of records SPILL sent through the spill file
+	 */
+	public long getSpilledRecords() {
+		return spilledRecords;
+	}
+
+	// ------------ Producer side -------------------
+
+	/**
+	 * @return whether the ring has a free slot
+	 */
+	private boolean hasRoom() {
+		long next = head.get();
+		if (next - cachedTail <= mask) {
+			return true;
+		}
+		cachedTail = tail.get();
+		return next - cachedTail <= mask;
+	}
+
+	private void waitForRoom() throws IOException {
+		int spins = 0;
+		while (!hasRoom()) {
+			checkError();
+			spins = idle(spins);
+		}
+	}
+
+	/**
+	 * Fills the next slot and hands it to the writer. The ring must have
+	 * room.
+	 */
+	private void publish(double time, int[] populations, long marker) {
+		long next = head.get();
+		int slot = (int) (next & mask);
+		times[slot] = time;
+		if (populations != null) {
+			System.arraycopy(populations, 0, this.populations, slot
+					* numSpecies, numSpecies);
+		}
+		markers[slot] = marker;
+		head.lazySet(next + 1); // Ordered after the slot's contents
+	}
+
+	/**
+	 * Publishes the latest record or the spill marker held back for room,
+	 * waiting for it
+	 */
+	private void publishPending() throws IOException {
+		if (hasLatest) {
+			waitForRoom();
+			publish(latestTime, latest, RECORD);
+			hasLatest = false;
+		}
+		if (unmarkedSpills > 0) {
+			waitForRoom();
+			publishMarker();
+		}
+	}
+
+	private void keepLatest(double time, int[] populations) {
+		if (hasLatest) {
+			droppedRecords++;
+		}
+		latestTime = time;
+		System.arraycopy(populations, 0, latest, 0, numSpecies);
+		hasLatest = true;
+	}
+
+	private void spill(double time, int[] populations) throws IOException {
+		if (spillOut == null) {
+			spillFile = File.createTempFile("trajectory", ".spill");
+			spillFile.deleteOnExit();
+			spillOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(spillFile), 1 << 16));
+		}
+		spillOut.writeDouble(time);
+		for (int i = 0; i < numSpecies; i++) {
+			spillOut.writeInt(populations[i]);
+		}
+		unmarkedSpills++;
+		spilledRecords++;
+	}
+
+	/**
+	 * Makes the spilled records readable and marks their place in the ring.
+	 * The ring must have room.
+	 */
+	private void publishMarker() throws IOException {
+		spillOut.flush();
+		publish(0, null, unmarkedSpills);
+		unmarkedSpills = 0;
+	}
+
+	// ------------ Writer side -------------------
+
+	/**
+	 * Body of the writer thread
+	 */
+	private void writeLoop() {
+		long next = 0;
+		int spins = 0;
+		try {
+			while (true) {
+				if (next == head.get()) {
+					if (closed) {
+						return;
+					}
+					spins = idle(spins);
+					continue;
+				}
+				spins = 0;
+
+				int slot = (int) (next & mask);
+				long marker = markers[slot];
+				if (marker == RECORD) {
+					System.arraycopy(populations, slot * numSpecies,
+							writerPopulations, 0, numSpecies);
+					sink.record(times[slot], writerPopulations);
+				} else if (marker == END_RUN) {
+					sink.endRun();
+				} else {
+					readSpill(marker);
+				}
+				tail.lazySet(++next);
+			}
+		} catch (IOException e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * Passes on records from the spill file
+	 */
+	private void readSpill(long count) throws IOException {
+		if (spillIn == null) {
+			spillIn = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(spillFile), 1 << 16));
+		}
+		for (long i = 0; i < count; i++) {
+			double time = spillIn.readDouble();
+			for (int s = 0; s < numSpecies; s++) {
+				writerPopulations[s] = spillIn.readInt();
+			}
+			sink.record(time, writerPopulations);
+		}
+	}
+
+	// ------------ Shared -------------------
+
+	/**
+	 * Waits a little: spins first, then yields, then parks
+	 *
+	 * @return the number of times waited so far
+	 */
+	private static int idle(int spins) {
+		if (spins < SPINS) {
+			// Busy wait
+		} else if (spins < 2 * SPINS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return spins + 1;
+	}
+
+	private void checkError() throws IOException {
+		IOException e = error;
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	private void closeSpill() throws IOException {
+		if (spillIn != null) {
+			spillIn.close();
+		}
+		if (spillOut != null) {
+			spillOut.close();
+			spillFile.delete();
+		}
+	}
+}
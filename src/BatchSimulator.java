@@ -0,0 +1,239 @@
+/**
+ * Simulates a batch of independent runs side by side with the direct method.
+ * For small models a single run spends most of its time on per-event
+ * overhead; here every step advances all runs of the batch at once, and the
+ * state is kept as structure-of-arrays with the runs innermost:
+ * populations[s * K + k] is species s in run k and propensities[r * K + k]
+ * reaction r in run k. The propensity, total and selection loops then walk
+ * K contiguous values with no branches on the model, which the JIT unrolls
+ * and vectorizes where the hardware allows.
+ *
+ * Every run (lane) keeps its own clock and random number stream, and is
+ * seeded from its run index exactly as a run of EnsembleRunner is, so results
+ * do not depend on the batch size. A lane that passes the simulation length
+ * stops firing; the batch ends when all have.
+ *
+ * @author loganlinn
+ *
+ */
+public class BatchSimulator {
+	private final int batchSize;
+	private final int numSpecies;
+	private final int numReactions;
+	private final double totalTime;
+	private final ReactionNetwork network;
+	private final int[] initialPopulations;
+	private final int[] watchedSpecies; // 0-based indices of the species to output
+
+	private final int[] populations; // [species][lane]
+	private final double[] propensities; // [reaction][lane]
+	private final long[] fireCounts; // [reaction][lane]
+	private final double[] times;
+	private final double[] totals;
+	private final double[] targets;
+	private final double[] sums;
+	private final int[] chosen;
+	private final boolean[] active;
+	private final RandomStream[] lanes;
+
+	/**
+	 * BatchSimulator constructor
+	 *
+	 * @param simulation
+	 *            simulation whose model, initial state and kind of random
+	 *            number stream the runs use
+	 * @param batchSize
+	 *            number of runs advanced together
+	 */
+	public BatchSimulator(Simulation simulation, int batchSize) {
+		this.batchSize = batchSize;
+		network = simulation.getNetwork();
+		initialPopulations = simulation.getInitialPopulations();
+		numSpecies = initialPopulations.length;
+		numReactions = network.getNumReactions();
+		totalTime = simulation.getTotalTime();
+		watchedSpecies = new int[simulation.getSpeciesToOutput().size()];
+		for (int i = 0; i < watchedSpecies.length; i++) {
+			watchedSpecies[i] = simulation.getSpeciesToOutput().get(i) - 1;
+		}
+
+		populations = new int[numSpecies * batchSize];
+		propensities = new double[numReactions * batchSize];
+		fireCounts = new long[numReactions * batchSize];
+		times = new double[batchSize];
+		totals = new double[batchSize];
+		targets = new double[batchSize];
+		sums = new double[batchSize];
+		chosen = new int[batchSize];
+		active = new boolean[batchSize];
+		lanes = new RandomStream[batchSize];
+		for (int k = 0; k < batchSize; k++) {
+			lanes[k] = simulation.getRandom().split(); // Same kind of stream
+		}
+	}
+
+	/**
+	 * Simulates a range of runs, a batch at a time
+	 *
+	 * @param seed
+	 *            ensemble seed; run i is seeded with
+	 *            EnsembleRunner.runSeed(seed, i)
+	 * @param firstRun
+	 *            index of the first run
+	 * @param numRuns
+	 * @param runFireCounts
+	 *            filled with each run's fire counts, from index 0
+	 * @param statistics
+	 *            gets each run's final populations, in run order
+	 */
+	public void simulate(long seed, long firstRun, int numRuns,
+			long[][] runFireCounts, EnsembleStatistics statistics) {
+		int[] watched = new int[watchedSpecies.length];
+		for (int first = 0; first < numRuns; first += batchSize) {
+			int width = Math.min(batchSize, numRuns - first);
+			for (int k = 0; k < width; k++) {
+				lanes[k].setSeed(EnsembleRunner.runSeed(seed, firstRun
+						+ first + k));
+			}
+			simulateBatch(width);
+
+			/*
+			 * Hand over the results in run order
+			 */
+			for (int k = 0; k < width; k++) {
+				for (int i = 0; i < watchedSpecies.length; i++) {
+					watched[i] = populations[watchedSpecies[i] * batchSize + k];
+				}
+				statistics.add(watched);
+				long[] counts = new long[numReactions];
+				for (int r = 0; r < numReactions; r++) {
+					counts[r] = fireCounts[r * batchSize + k];
+				}
+				runFireCounts[first + k] = counts;
+			}
+		}
+	}
+
+	/**
+	 * Runs the first width lanes from the initial state to the end
+	 */
+	private void simulateBatch(int width) {
+		int k;
+		for (int s = 0; s < numSpecies; s++) {
+			int base = s * batchSize;
+			for (k = 0; k < width; k++) {
+				populations[base + k] = initialPopulations[s];
+			}
+		}
+		for (int i = 0; i < fireCounts.length; i++) {
+			fireCounts[i] = 0;
+		}
+		for (k = 0; k < width; k++) {
+			times[k] = 0;
+			active[k] = true;
+		}
+		int numActive = width;
+
+		double[] rates = network.getRates();
+		int[] reactantOffsets = network.getReactantOffsets();
+		int[] reactantSpecies = network.getReactantSpecies();
+		int[] reactantCoefficients = network.getReactantCoefficients();
+		int[] changeOffsets = network.getChangeOffsets();
+		int[] changeSpecies = network.getChangeSpecies();
+		int[] changeAmounts = network.getChangeAmounts();
+
+		while (numActive > 0) {
+			/*
+			 * Propensities of every lane, multiplied in the same order as
+			 * ReactionNetwork.propensity()
+			 */
+			for (int r = 0; r < numReactions; r++) {
+				int base = r * batchSize;
+				double rate = rates[r];
+				for (k = 0; k < width; k++) {
+					propensities[base + k] = rate;
+				}
+				for (int i = reactantOffsets[r]; i < reactantOffsets[r + 1]; i++) {
+					int speciesBase = reactantSpecies[i] * batchSize;
+					for (int n = reactantCoefficients[i] - 1; n >= 0; n--) {
+						for (k = 0; k < width; k++) {
+							propensities[base + k] *= populations[speciesBase
+									+ k]
+									- n;
+						}
+					}
+				}
+			}
+			for (k = 0; k < width; k++) {
+				totals[k] = 0;
+			}
+			for (int r = 0; r < numReactions; r++) {
+				int base = r * batchSize;
+				for (k = 0; k < width; k++) {
+					totals[k] += propensities[base + k];
+				}
+			}
+
+			/*
+			 * Next event time of every lane; lanes past the end stop
+			 */
+			for (k = 0; k < width; k++) {
+				if (!active[k]) {
+					continue;
+				}
+				if (totals[k] > 0) {
+					times[k] += lanes[k].nextExponential() / totals[k];
+				} else {
+					times[k] = Double.POSITIVE_INFINITY;
+				}
+				if (times[k] > totalTime) {
+					active[k] = false;
+					numActive--;
+				} else {
+					targets[k] = lanes[k].nextDouble() * totals[k];
+				}
+			}
+
+			/*
+			 * Pick the reaction where each lane's cumulative propensity
+			 * passes its target; the last reaction able to fire guards
+			 * against round-off
+			 */
+			for (k = 0; k < width; k++) {
+				sums[k] = 0;
+				chosen[k] = -1;
+			}
+			for (int r = 0; r < numReactions; r++) {
+				int base = r * batchSize;
+				for (k = 0; k < width; k++) {
+					double propensity = propensities[base + k];
+					if (propensity > 0
+							&& (chosen[k] < 0 || targets[k] >= sums[k])) {
+						chosen[k] = r;
+					}
+					sums[k] += propensity;
+				}
+			}
+
+			/*
+			 * Fire
+			 */
+			for (k = 0; k < width; k++) {
+				if (active[k]) {
+					int r = chosen[k];
+					fireCounts[r * batchSize + k]++;
+					for (int i = changeOffsets[r]; i < changeOffsets[r + 1]; i++) {
+						populations[changeSpecies[i] * batchSize + k] += changeAmounts[i];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of runs advanced together
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+}
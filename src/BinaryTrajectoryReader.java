@@ -0,0 +1,209 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Reads trajectory files written by BinaryTrajectoryWriter. Run as a program
+ * it converts a binary trajectory back to the tab-separated text format of
+ * SimulationOutput, with a "# run N" line before each run's records:
+ *
+ * <pre>
+ * java BinaryTrajectoryReader trajectory.bin [output.tsv]
+ * </pre>
+ *
+ * @author loganlinn
+ *
+ */
+public class BinaryTrajectoryReader {
+	private final DataInputStream in;
+	private final int[] speciesIds;
+	private final long numRecords;
+	private final long[] runStarts;
+	private long recordIndex = 0;
+
+	/**
+	 * Opens a trajectory file and reads its header and run table
+	 *
+	 * @param filePath
+	 * @throws IOException
+	 */
+	public BinaryTrajectoryReader(String filePath) throws IOException {
+		/*
+		 * Read the run table from the end of the file first
+		 */
+		DataInputStream header = open(filePath);
+		long runTableOffset;
+		try {
+			if (header.readInt() != BinaryTrajectoryWriter.MAGIC) {
+				throw new IOException("Not a binary trajectory file: "
+						+ filePath);
+			}
+			int version = header.readInt();
+			if (version != BinaryTrajectoryWriter.VERSION) {
+				throw new IOException("Unsupported trajectory version "
+						+ version);
+			}
+			speciesIds = new int[header.readInt()];
+			for (int i = 0; i < speciesIds.length; i++) {
+				speciesIds[i] = header.readInt();
+			}
+			numRecords = header.readLong();
+			runTableOffset = header.readLong();
+			if (runTableOffset == 0) {
+				throw new IOException("Trajectory file was not closed: "
+						+ filePath);
+			}
+			skipFully(header, runTableOffset - headerSize());
+			runStarts = new long[header.readInt()];
+			for (int i = 0; i < runStarts.length; i++) {
+				runStarts[i] = header.readLong();
+			}
+		} finally {
+			header.close();
+		}
+
+		/*
+		 * Position the record stream after the header
+		 */
+		in = open(filePath);
+		skipFully(in, headerSize());
+	}
+
+	private static DataInputStream open(String filePath)
+			throws FileNotFoundException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(
+				filePath), 1 << 16));
+	}
+
+	private static void skipFully(DataInputStream stream, long bytes)
+			throws IOException {
+		while (bytes > 0) {
+			long skipped = stream.skip(bytes);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			bytes -= skipped;
+		}
+	}
+
+	private long headerSize() {
+		return 12 + 4 * speciesIds.length + 16;
+	}
+
+	/**
+	 * Reads the next record
+	 *
+	 * @param populations
+	 *            filled with the watched populations
+	 * @return the record's time
+	 * @throws IOException
+	 */
+	public double readRecord(int[] populations) throws IOException {
+		double time = in.readDouble();
+		for (int i = 0; i < speciesIds.length; i++) {
+			populations[i] = in.readInt();
+		}
+		recordIndex++;
+		return time;
+	}
+
+	/**
+	 * @return true if there are records left
+	 */
+	public boolean hasNext() {
+		return recordIndex < numRecords;
+	}
+
+	/**
+	 * @return the index of the next record
+	 */
+	public long getRecordIndex() {
+		return recordIndex;
+	}
+
+	/**
+	 * @return the species IDs of the watched species, in record order
+	 */
+	public int[] getSpeciesIds() {
+		return speciesIds;
+	}
+
+	/**
+	 * @return the number of records in the file
+	 */
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * @return the first record index of each run
+	 */
+	public long[] getRunStarts() {
+		return runStarts;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Writes the whole trajectory as tab-separated text
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	public void writeText(OutputStream output) throws IOException {
+		Writer out = new OutputStreamWriter(output, "ASCII");
+		int[] populations = new int[speciesIds.length];
+		StringBuilder line = new StringBuilder();
+		int run = 0;
+		while (hasNext()) {
+			while (run < runStarts.length
+					&& runStarts[run] == getRecordIndex()) {
+				out.write("# run " + run + "\n");
+				run++;
+			}
+			line.setLength(0);
+			line.append(readRecord(populations));
+			for (int population : populations) {
+				line.append(SimulationOutput.DELIMITER);
+				line.append(population);
+			}
+			line.append('\n');
+			out.write(line.toString());
+		}
+		// Trailing runs without records
+		while (run < runStarts.length) {
+			out.write("# run " + run + "\n");
+			run++;
+		}
+		out.flush();
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: BinaryTrajectoryReader <trajectory.bin> [output.tsv]");
+			return;
+		}
+		try {
+			BinaryTrajectoryReader reader = new BinaryTrajectoryReader(args[0]);
+			OutputStream output = args.length > 1 ? new FileOutputStream(
+					args[1]) : System.out;
+			try {
+				reader.writeText(output);
+			} finally {
+				reader.close();
+				output.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
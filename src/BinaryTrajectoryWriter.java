@@ -0,0 +1,184 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes trajectories in a binary format of fixed-width records through a
+ * memory-mapped file. Each record is the time as a double followed by one int
+ * per watched species, so nothing is formatted as text while simulating.
+ *
+ * File layout (big-endian):
+ *
+ * <pre>
+ * header:    int MAGIC, int VERSION, int numSpecies, int[numSpecies] speciesIds,
+ *            long numRecords, long runTableOffset
+ * records:   double time, int[numSpecies] populations
+ * run table: int numRuns, long[numRuns] first record of each run
+ * </pre>
+ *
+ * numRecords and runTableOffset are filled in when the writer is closed. Where
+ * the file cannot be truncated while mapped, the unused rest of the last
+ * mapped region is left after the run table.
+ * BinaryTrajectoryReader converts the file back to tab-separated text.
+ *
+ * @author loganlinn
+ *
+ */
+public class BinaryTrajectoryWriter implements TrajectorySink {
+	public static final int MAGIC = 0x53534154; // "SSAT"
+	public static final int VERSION = 1;
+	private static final long REGION_SIZE = 1L << 26; // 64MB mapped at a time
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int numSpecies;
+	private final int recordSize;
+	private final long numRecordsOffset; // Header position of numRecords
+	private final long regionRecords; // Records per mapped region
+
+	private MappedByteBuffer region;
+	private long position; // File position of the next record
+	private long numRecords = 0;
+
+	private long[] runStarts = new long[16];
+	private int numRuns = 0;
+	private boolean runStarted = false;
+
+	/**
+	 * BinaryTrajectoryWriter constructor
+	 *
+	 * @param filePath
+	 * @param speciesToOutput
+	 *            species IDs of the watched species, in record order
+	 * @throws IOException
+	 */
+	public BinaryTrajectoryWriter(String filePath, int[] speciesToOutput)
+			throws IOException {
+		File outputFile = new File(filePath);
+		file = new RandomAccessFile(outputFile, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		numSpecies = speciesToOutput.length;
+		recordSize = 8 + 4 * numSpecies;
+		regionRecords = Math.max(1, REGION_SIZE / recordSize);
+
+		/*
+		 * Write the header
+		 */
+		ByteBuffer header = ByteBuffer.allocate(12 + 4 * numSpecies + 16);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(numSpecies);
+		for (int speciesId : speciesToOutput) {
+			header.putInt(speciesId);
+		}
+		numRecordsOffset = header.position();
+		header.putLong(0); // numRecords
+		header.putLong(0); // runTableOffset
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		position = channel.position();
+	}
+
+	@Override
+	public void record(double time, int[] populations) throws IOException {
+		if (!runStarted) {
+			startRun();
+		}
+		if (region == null || !region.hasRemaining()) {
+			mapNextRegion();
+		}
+		region.putDouble(time);
+		for (int i = 0; i < numSpecies; i++) {
+			region.putInt(populations[i]);
+		}
+		position += recordSize;
+		numRecords++;
+	}
+
+	/**
+	 * Maps the next region of the file. Regions hold a whole number of
+	 * records so no record is split between two regions.
+	 */
+	private void mapNextRegion() throws IOException {
+		region = channel.map(FileChannel.MapMode.READ_WRITE, position,
+				regionRecords * recordSize);
+	}
+
+	/**
+	 * Remembers where a run's records start
+	 */
+	private void startRun() {
+		if (numRuns == runStarts.length) {
+			long[] grown = new long[runStarts.length * 2];
+			System.arraycopy(runStarts, 0, grown, 0, numRuns);
+			runStarts = grown;
+		}
+		runStarts[numRuns++] = numRecords;
+		runStarted = true;
+	}
+
+	@Override
+	public void endRun() throws IOException {
+		if (!runStarted) {
+			startRun(); // A run without records still gets an entry
+		}
+		runStarted = false;
+	}
+
+	/**
+	 * Records are written straight into the mapped file, so nothing is held
+	 * back
+	 */
+	@Override
+	public void flush() throws IOException {
+	}
+
+	/**
+	 * Forces the records to the file, writes the run table after them and
+	 * fills in the header, then cuts off the unused rest of the last mapped
+	 * region
+	 */
+	@Override
+	public void close() throws IOException {
+		if (region != null) {
+			region.force();
+			region = null;
+		}
+
+		ByteBuffer runTable = ByteBuffer.allocate(4 + 8 * numRuns);
+		runTable.putInt(numRuns);
+		for (int i = 0; i < numRuns; i++) {
+			runTable.putLong(runStarts[i]);
+		}
+		runTable.flip();
+		while (runTable.hasRemaining()) {
+			channel.write(runTable, position + runTable.position());
+		}
+
+		ByteBuffer counts = ByteBuffer.allocate(16);
+		counts.putLong(numRecords);
+		counts.putLong(position);
+		counts.flip();
+		while (counts.hasRemaining()) {
+			channel.write(counts, numRecordsOffset + counts.position());
+		}
+
+		// Mapped regions are only released by the garbage collector, and
+		// some platforms, ie) Windows, refuse to truncate a file while one
+		// is mapped. The file is complete either way, since readers find the
+		// records and run table through the header.
+		try {
+			channel.truncate(position + runTable.limit());
+		} catch (IOException e) {
+			// The unused tail stays
+		}
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,88 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Wraps a stream and hands out exponential random numbers from a buffer that
+ * is refilled in bulk with fillExponentials(). Other numbers come straight
+ * from the wrapped stream.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class BufferedExponentialStream extends RandomStream {
+	public static final int DEFAULT_SIZE = 256;
+
+	private final RandomStream source;
+	private final double[] exponentials;
+	private int next; // Index of the next unused exponential
+
+	public BufferedExponentialStream(RandomStream source, int size) {
+		this.source = source;
+		exponentials = new double[size];
+		next = size;
+	}
+
+	@Override
+	public long nextLong() {
+		return source.nextLong();
+	}
+
+	@Override
+	public double nextExponential() {
+		if (next == exponentials.length) {
+			source.fillExponentials(exponentials, 0, exponentials.length);
+			next = 0;
+		}
+		return exponentials[next++];
+	}
+
+	/**
+	 * Reseeds the wrapped stream and drops the buffered numbers
+	 */
+	@Override
+	public void setSeed(long seed) {
+		source.setSeed(seed);
+		next = exponentials.length;
+	}
+
+	/**
+	 * Also writes the buffered numbers not handed out yet
+	 */
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		source.writeCheckpoint(out);
+		out.writeInt(exponentials.length - next);
+		for (int i = next; i < exponentials.length; i++) {
+			out.writeDouble(exponentials[i]);
+		}
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		source.readCheckpoint(in);
+		int remaining = in.readInt();
+		if (remaining < 0 || remaining > exponentials.length) {
+			throw new IOException("Checkpoint does not fit the buffer size");
+		}
+		next = exponentials.length - remaining;
+		for (int i = next; i < exponentials.length; i++) {
+			exponentials[i] = in.readDouble();
+		}
+	}
+
+	/**
+	 * Also describes the buffer size and the wrapped stream
+	 */
+	@Override
+	public String getDescription() {
+		return getClass().getName() + "(" + exponentials.length + ", "
+				+ source.getDescription() + ")";
+	}
+
+	@Override
+	public RandomStream split() {
+		return new BufferedExponentialStream(source.split(),
+				exponentials.length);
+	}
+}
@@ -0,0 +1,235 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps a checkpoint file of a running simulation up to date. The state is
+ * serialized into memory on the simulating thread, which only takes as long
+ * as copying the arrays; a background thread then writes it to a temporary
+ * file, forces it and the simulation output to the disk, and renames it over
+ * the previous checkpoint with FileReplacer. Where renaming over a file is
+ * atomic, as on POSIX systems, a crash at any point leaves either the old or
+ * the new checkpoint in place, never a half written one; elsewhere a crash
+ * during the replace can leave the new checkpoint only under its temporary
+ * name. The output file is always at least as long as the checkpoint says.
+ *
+ * If the previous checkpoint is still being written when the next one is
+ * due, the new one is skipped rather than waiting for the disk.
+ *
+ * File layout (big-endian): int MAGIC, int VERSION, then the state written by
+ * the checkpointed object.
+ *
+ * @author loganlinn
+ *
+ */
+public class CheckpointWriter {
+	public static final int MAGIC = 0x53534350; // "SSCP"
+	public static final int VERSION = 3;
+	private static final int EVENTS_PER_TIME_CHECK = 4096;
+
+	private final File file;
+	private final long intervalNanos;
+	private final SimulationOutput output; // null if there is none to sync
+	private final Thread thread;
+	private long lastCheckpointTime = System.nanoTime();
+	private int eventsSinceTimeCheck = 0;
+	private int lastSize = 1 << 12;
+
+	// Shared with the writing thread, guarded by this
+	private byte[] pending;
+	private boolean writing = false;
+	private boolean closed = false;
+	private IOException error;
+
+	/**
+	 * CheckpointWriter constructor. Starts the writing thread.
+	 *
+	 * @param filePath
+	 * @param intervalSeconds
+	 *            time between checkpoints
+	 * @param output
+	 *            output the checkpoints point into, or null
+	 */
+	public CheckpointWriter(String filePath, double intervalSeconds,
+			SimulationOutput output) {
+		file = new File(filePath);
+		intervalNanos = (long) (intervalSeconds * 1e9);
+		this.output = output;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "checkpoint writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Called after every event. Only looks at the clock every
+	 * EVENTS_PER_TIME_CHECK calls.
+	 *
+	 * @return whether a checkpoint is due
+	 */
+	public boolean isDue() {
+		if (++eventsSinceTimeCheck < EVENTS_PER_TIME_CHECK) {
+			return false;
+		}
+		eventsSinceTimeCheck = 0;
+		return System.nanoTime() - lastCheckpointTime >= intervalNanos;
+	}
+
+	/**
+	 * Serializes the state and hands it to the writing thread, unless the
+	 * previous checkpoint is still being written
+	 *
+	 * @param state
+	 * @throws IOException
+	 *             if the state could not be serialized, or writing the
+	 *             previous checkpoint failed
+	 */
+	public void write(Checkpointable state) throws IOException {
+		lastCheckpointTime = System.nanoTime();
+		synchronized (this) {
+			checkError();
+			if (writing) {
+				return;
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(lastSize);
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		state.writeCheckpoint(data);
+		data.flush();
+		lastSize = bytes.size();
+
+		synchronized (this) {
+			pending = bytes.toByteArray();
+			writing = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the checkpoint being written, if any, and stops the writing
+	 * thread
+	 *
+	 * @throws IOException
+	 *             if writing a checkpoint failed
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			checkError();
+		}
+	}
+
+	/**
+	 * Removes the checkpoint file, ie) once every run has finished
+	 */
+	public void delete() {
+		file.delete();
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			IOException e = error;
+			error = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Body of the writing thread
+	 */
+	private void writeLoop() {
+		while (true) {
+			byte[] checkpoint;
+			synchronized (this) {
+				while (pending == null && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (pending == null) {
+					return; // Closed with nothing left to write
+				}
+				checkpoint = pending;
+			}
+
+			try {
+				replace(checkpoint);
+			} catch (IOException e) {
+				synchronized (this) {
+					error = e;
+				}
+			}
+
+			synchronized (this) {
+				pending = null;
+				writing = false;
+			}
+		}
+	}
+
+	/**
+	 * Writes a checkpoint to a temporary file and renames it into place once
+	 * it and the output are on the disk, then syncs the directory
+	 */
+	private void replace(byte[] checkpoint) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				out.write(checkpoint);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (output != null) {
+				output.sync();
+			}
+
+			FileReplacer.replace(tempFile, file);
+		} finally {
+			tempFile.delete(); // Only left if the checkpoint was not moved
+		}
+	}
+
+	/**
+	 * Opens a checkpoint file for reading its state
+	 *
+	 * @param filePath
+	 * @return the state, positioned after the header
+	 * @throws IOException
+	 *             if the file is not a checkpoint of this version
+	 */
+	public static DataInputStream open(String filePath) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(filePath), 1 << 16));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			in.close();
+			throw new IOException(filePath
+					+ " is not a checkpoint of this version");
+		}
+		return in;
+	}
+}
@@ -0,0 +1,33 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * State that can be saved in a checkpoint and restored from it later, so an
+ * interrupted run continues exactly where it stopped. Only what cannot be
+ * recomputed from the rest of the checkpoint needs to be written, ie) an
+ * engine's running sums but not the propensities behind them.
+ *
+ * @author loganlinn
+ *
+ */
+public interface Checkpointable {
+
+	/**
+	 * Writes the state
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeCheckpoint(DataOutput out) throws IOException;
+
+	/**
+	 * Restores the state written by writeCheckpoint(), replacing the current
+	 * one
+	 *
+	 * @param in
+	 * @throws IOException
+	 *             if the checkpoint cannot be read or does not fit
+	 */
+	public void readCheckpoint(DataInput in) throws IOException;
+}
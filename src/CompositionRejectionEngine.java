@@ -0,0 +1,233 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Composition-rejection selection (Slepoy, Thompson & Plimpton) for networks
+ * with very many reactions. Reactions are grouped into bins by propensity:
+ * bin k holds the reactions with a propensity in [2^k, 2^(k+1)). A bin is
+ * picked by walking the bin sums, of which there are only as many as the
+ * propensities span powers of two, and a reaction within the bin is picked by
+ * rejection sampling, which accepts with probability at least 1/2. Selection
+ * does not depend on the number of reactions. When a reaction fires, only it
+ * and its dependent reactions move between bins.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class CompositionRejectionEngine extends DirectEngine {
+	// Bin index = exponent - MIN_EXPONENT, covering subnormals too
+	private static final int MIN_EXPONENT = Double.MIN_EXPONENT - 1;
+	private static final int NUM_BINS = Double.MAX_EXPONENT - MIN_EXPONENT + 1;
+	private static final int INITIAL_BIN_CAPACITY = 4;
+
+	private final int[][] binMembers = new int[NUM_BINS][];
+	private final int[] binSizes = new int[NUM_BINS];
+	private final double[] binSums = new double[NUM_BINS];
+	private final int[] binOf; // Bin of each reaction, -1 if propensity is 0
+	private final int[] slotOf; // Position of each reaction within its bin
+	private int lowestBin = NUM_BINS; // Range of bins that may be non-empty
+	private int highestBin = -1;
+
+	public CompositionRejectionEngine(Simulation simulation) {
+		super(simulation);
+		binOf = new int[propensities.length];
+		slotOf = new int[propensities.length];
+	}
+
+	@Override
+	public void reset() {
+		for (int bin = lowestBin; bin <= highestBin; bin++) {
+			binSizes[bin] = 0;
+			binSums[bin] = 0;
+		}
+		lowestBin = NUM_BINS;
+		highestBin = -1;
+
+		super.reset(); // Computes the propensities and sums the bins
+		for (int r = 0; r < propensities.length; r++) {
+			binOf[r] = -1;
+			if (propensities[r] > 0) {
+				insert(r, binFor(propensities[r]));
+			}
+		}
+		resum();
+	}
+
+	/**
+	 * Also writes the bins: the order of their members decides which
+	 * reaction a random index picks, and their sums carry round-off
+	 */
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		super.writeCheckpoint(out);
+		out.writeInt(lowestBin);
+		out.writeInt(highestBin);
+		for (int bin = lowestBin; bin <= highestBin; bin++) {
+			out.writeInt(binSizes[bin]);
+			out.writeDouble(binSums[bin]);
+			for (int i = 0; i < binSizes[bin]; i++) {
+				out.writeInt(binMembers[bin][i]);
+			}
+		}
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		super.readCheckpoint(in);
+		for (int bin = lowestBin; bin <= highestBin; bin++) {
+			binSizes[bin] = 0;
+			binSums[bin] = 0;
+		}
+		for (int r = 0; r < binOf.length; r++) {
+			binOf[r] = -1;
+		}
+
+		lowestBin = in.readInt();
+		highestBin = in.readInt();
+		for (int bin = lowestBin; bin <= highestBin; bin++) {
+			int size = in.readInt();
+			double sum = in.readDouble();
+			for (int i = 0; i < size; i++) {
+				insert(in.readInt(), bin);
+			}
+			binSums[bin] = sum;
+		}
+	}
+
+	/**
+	 * Picks a bin by its share of the total, then a reaction in the bin by
+	 * rejection
+	 */
+	@Override
+	protected int selectReaction(double target) {
+		if (highestBin < 0) {
+			return -1;
+		}
+
+		// Walk the bins from the largest propensities down
+		int bin = highestBin;
+		double sum = 0;
+		for (int b = highestBin; b >= lowestBin; b--) {
+			if (binSizes[b] > 0) {
+				bin = b;
+				sum += binSums[b];
+				if (target < sum) {
+					break;
+				}
+			}
+		}
+
+		// Every member is at least half the bin's upper bound
+		RandomStream random = simulation.getRandom();
+		int[] members = binMembers[bin];
+		int size = binSizes[bin];
+		double upperBound = Math.scalb(1.0, bin + MIN_EXPONENT + 1);
+		while (true) {
+			int reactionId = members[(int) (random.nextDouble() * size)];
+			if (random.nextDouble() * upperBound < propensities[reactionId]) {
+				return reactionId;
+			}
+		}
+	}
+
+	/**
+	 * Also moves the reaction to the bin for its new propensity
+	 */
+	@Override
+	protected void updatePropensity(int reactionId) {
+		double oldPropensity = propensities[reactionId];
+		super.updatePropensity(reactionId);
+		double propensity = propensities[reactionId];
+
+		int oldBin = binOf[reactionId];
+		int bin = propensity > 0 ? binFor(propensity) : -1;
+		if (bin == oldBin) {
+			if (bin >= 0) {
+				binSums[bin] += propensity - oldPropensity;
+			}
+			return;
+		}
+		if (oldBin >= 0) {
+			remove(reactionId, oldBin, oldPropensity);
+		}
+		if (bin >= 0) {
+			insert(reactionId, bin);
+		}
+	}
+
+	/**
+	 * Also rebuilds the bin sums
+	 */
+	@Override
+	protected void resum() {
+		super.resum();
+		for (int bin = lowestBin; bin <= highestBin; bin++) {
+			double sum = 0;
+			for (int i = 0; i < binSizes[bin]; i++) {
+				sum += propensities[binMembers[bin][i]];
+			}
+			binSums[bin] = sum;
+		}
+	}
+
+	/**
+	 * @return the bin for a positive propensity
+	 */
+	private static int binFor(double propensity) {
+		return Math.getExponent(propensity) - MIN_EXPONENT;
+	}
+
+	private void insert(int reactionId, int bin) {
+		int[] members = binMembers[bin];
+		if (members == null) {
+			members = new int[INITIAL_BIN_CAPACITY];
+			binMembers[bin] = members;
+		} else if (binSizes[bin] == members.length) {
+			int[] grown = new int[members.length * 2];
+			System.arraycopy(members, 0, grown, 0, members.length);
+			members = grown;
+			binMembers[bin] = members;
+		}
+		int slot = binSizes[bin]++;
+		members[slot] = reactionId;
+		slotOf[reactionId] = slot;
+		binOf[reactionId] = bin;
+		binSums[bin] += propensities[reactionId];
+
+		if (bin < lowestBin) {
+			lowestBin = bin;
+		}
+		if (bin > highestBin) {
+			highestBin = bin;
+		}
+	}
+
+	/**
+	 * Removes a reaction from a bin by moving the bin's last member into its
+	 * slot
+	 */
+	private void remove(int reactionId, int bin, double oldPropensity) {
+		int[] members = binMembers[bin];
+		int slot = slotOf[reactionId];
+		int last = members[--binSizes[bin]];
+		members[slot] = last;
+		slotOf[last] = slot;
+		binOf[reactionId] = -1;
+		binSums[bin] -= oldPropensity;
+
+		if (binSizes[bin] == 0) {
+			binSums[bin] = 0;
+			// Shrink the range past empty bins at its ends
+			while (highestBin >= 0 && binSizes[highestBin] == 0) {
+				highestBin--;
+			}
+			while (lowestBin < NUM_BINS && binSizes[lowestBin] == 0) {
+				lowestBin++;
+			}
+			if (highestBin < 0) {
+				lowestBin = NUM_BINS;
+			}
+		}
+	}
+}
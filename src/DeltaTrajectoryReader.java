@@ -0,0 +1,319 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads trajectory files written by DeltaTrajectoryWriter. Records are read
+ * one after another, and seek() jumps to any record by way of the block
+ * index, decoding only the block holding it. Run as a program it converts a
+ * trajectory to the tab-separated text format of SimulationOutput, with a
+ * "# run N" line before each run's records:
+ *
+ * <pre>
+ * java DeltaTrajectoryReader trajectory.delta [output.tsv]
+ * </pre>
+ *
+ * @author loganlinn
+ *
+ */
+public class DeltaTrajectoryReader {
+	private final RandomAccessFile file;
+	private final int[] speciesIds;
+	private final long[] blockOffsets;
+	private final long[] blockFirstRecords;
+	private final long[] runStarts;
+	private final long numRecords;
+	private final Inflater inflater = new Inflater();
+
+	private byte[] compressed = new byte[1 << 16];
+	private byte[] block = new byte[1 << 16]; // Decoded records of a block
+	private int blockLength = 0;
+	private int blockPosition = 0;
+	private int currentBlock = -1;
+	private final int[] populations; // State after the last record read
+	private long timeBits;
+	private long recordIndex = 0;
+
+	/**
+	 * Opens a trajectory file and reads its header and block index
+	 *
+	 * @param filePath
+	 * @throws IOException
+	 */
+	public DeltaTrajectoryReader(String filePath) throws IOException {
+		file = new RandomAccessFile(filePath, "r");
+		if (file.readInt() != DeltaTrajectoryWriter.MAGIC) {
+			file.close();
+			throw new IOException("Not a delta trajectory file: " + filePath);
+		}
+		int version = file.readInt();
+		if (version != DeltaTrajectoryWriter.VERSION) {
+			file.close();
+			throw new IOException("Unsupported trajectory version " + version);
+		}
+		speciesIds = new int[file.readInt()];
+		for (int i = 0; i < speciesIds.length; i++) {
+			speciesIds[i] = file.readInt();
+		}
+		populations = new int[speciesIds.length];
+
+		/*
+		 * The trailer points to the index
+		 */
+		file.seek(file.length() - 12);
+		long indexOffset = file.readLong();
+		if (file.readInt() != DeltaTrajectoryWriter.MAGIC) {
+			file.close();
+			throw new IOException("Trajectory file was not closed: "
+					+ filePath);
+		}
+		file.seek(indexOffset);
+		numRecords = file.readLong();
+		int numBlocks = file.readInt();
+		blockOffsets = new long[numBlocks];
+		blockFirstRecords = new long[numBlocks + 1];
+		for (int i = 0; i < numBlocks; i++) {
+			blockOffsets[i] = file.readLong();
+			blockFirstRecords[i] = file.readLong();
+		}
+		runStarts = new long[file.readInt()];
+		for (int i = 0; i < runStarts.length; i++) {
+			runStarts[i] = file.readLong();
+		}
+		blockFirstRecords[numBlocks] = numRecords;
+		currentBlock = -1;
+	}
+
+	/**
+	 * Reads the next record
+	 *
+	 * @param populations
+	 *            filled with the watched populations
+	 * @return the record's time
+	 * @throws IOException
+	 */
+	public double readRecord(int[] populations) throws IOException {
+		if (currentBlock + 1 < blockOffsets.length
+				&& recordIndex == blockFirstRecords[currentBlock + 1]) {
+			loadBlock(currentBlock + 1);
+		}
+		decodeRecord(recordIndex == blockFirstRecords[currentBlock]);
+		recordIndex++;
+		System.arraycopy(this.populations, 0, populations, 0,
+				populations.length);
+		return Double.longBitsToDouble(timeBits);
+	}
+
+	/**
+	 * Positions the reader so the next record read is the given one. Only
+	 * the block holding it is decoded.
+	 *
+	 * @param index
+	 *            record index, from 0 to the number of records
+	 * @throws IOException
+	 */
+	public void seek(long index) throws IOException {
+		if (index < 0 || index > numRecords) {
+			throw new IOException("No record " + index);
+		}
+		int low = 0;
+		int high = blockOffsets.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (blockFirstRecords[middle] <= index) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		if (blockOffsets.length == 0 || index == numRecords) {
+			recordIndex = index;
+			currentBlock = blockOffsets.length - 1;
+			blockPosition = blockLength;
+			return;
+		}
+		loadBlock(low);
+		recordIndex = blockFirstRecords[low];
+		while (recordIndex < index) {
+			decodeRecord(recordIndex == blockFirstRecords[low]);
+			recordIndex++;
+		}
+	}
+
+	/**
+	 * Reads and inflates a block
+	 */
+	private void loadBlock(int index) throws IOException {
+		file.seek(blockOffsets[index]);
+		int length = file.readInt();
+		if (compressed.length < length) {
+			compressed = new byte[length];
+		}
+		file.readFully(compressed, 0, length);
+
+		inflater.reset();
+		inflater.setInput(compressed, 0, length);
+		blockLength = 0;
+		try {
+			while (!inflater.finished()) {
+				if (blockLength == block.length) {
+					byte[] grown = new byte[block.length * 2];
+					System.arraycopy(block, 0, grown, 0, blockLength);
+					block = grown;
+				}
+				int inflated = inflater.inflate(block, blockLength,
+						block.length - blockLength);
+				if (inflated == 0 && inflater.needsInput()) {
+					throw new IOException("Truncated block " + index);
+				}
+				blockLength += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block " + index + ": "
+					+ e.getMessage());
+		}
+		blockPosition = 0;
+		currentBlock = index;
+	}
+
+	/**
+	 * Applies the next record of the current block to the state
+	 */
+	private void decodeRecord(boolean keyframe) throws IOException {
+		if (keyframe) {
+			timeBits = getVarint();
+			for (int i = 0; i < populations.length; i++) {
+				populations[i] = (int) unzigzag(getVarint());
+			}
+		} else {
+			timeBits ^= getVarint();
+			long numChanged = getVarint();
+			int species = -1;
+			for (long i = 0; i < numChanged; i++) {
+				species += (int) getVarint() + 1;
+				populations[species] += (int) unzigzag(getVarint());
+			}
+		}
+	}
+
+	private long getVarint() throws IOException {
+		long value = 0;
+		int shift = 0;
+		while (true) {
+			if (blockPosition == blockLength) {
+				throw new IOException("Record runs past the end of block "
+						+ currentBlock);
+			}
+			byte b = block[blockPosition++];
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * @return true if there are records left
+	 */
+	public boolean hasNext() {
+		return recordIndex < numRecords;
+	}
+
+	/**
+	 * @return the index of the next record
+	 */
+	public long getRecordIndex() {
+		return recordIndex;
+	}
+
+	/**
+	 * @return the species IDs of the watched species, in record order
+	 */
+	public int[] getSpeciesIds() {
+		return speciesIds;
+	}
+
+	/**
+	 * @return the number of records in the file
+	 */
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * @return the first record index of each run
+	 */
+	public long[] getRunStarts() {
+		return runStarts;
+	}
+
+	public void close() throws IOException {
+		inflater.end();
+		file.close();
+	}
+
+	/**
+	 * Writes the whole trajectory as tab-separated text
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	public void writeText(OutputStream output) throws IOException {
+		Writer out = new OutputStreamWriter(output, "ASCII");
+		int[] populations = new int[speciesIds.length];
+		StringBuilder line = new StringBuilder();
+		int run = 0;
+		seek(0);
+		while (hasNext()) {
+			while (run < runStarts.length
+					&& runStarts[run] == getRecordIndex()) {
+				out.write("# run " + run + "\n");
+				run++;
+			}
+			line.setLength(0);
+			line.append(readRecord(populations));
+			for (int population : populations) {
+				line.append(SimulationOutput.DELIMITER);
+				line.append(population);
+			}
+			line.append('\n');
+			out.write(line.toString());
+		}
+		// Trailing runs without records
+		while (run < runStarts.length) {
+			out.write("# run " + run + "\n");
+			run++;
+		}
+		out.flush();
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: DeltaTrajectoryReader <trajectory.delta> [output.tsv]");
+			return;
+		}
+		try {
+			DeltaTrajectoryReader reader = new DeltaTrajectoryReader(args[0]);
+			OutputStream output = args.length > 1 ? new FileOutputStream(
+					args[1]) : System.out;
+			try {
+				reader.writeText(output);
+			} finally {
+				reader.close();
+				output.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
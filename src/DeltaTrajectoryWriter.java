@@ -0,0 +1,257 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Writes trajectories as deltas in compressed blocks. Most events change only
+ * a few of the watched species, so after the first record of a block each
+ * record holds only the time and the species that changed, with their change
+ * in population. Numbers are written as variable-length integers and every
+ * block of records is deflated on its own. The first record of a block is a
+ * keyframe with every population, so any block can be decoded without the
+ * ones before it; a block index at the end of the file makes the trajectory
+ * seekable.
+ *
+ * File layout (big-endian):
+ *
+ * <pre>
+ * header:  int MAGIC, int VERSION, int numSpecies, int[numSpecies] speciesIds
+ * blocks:  int compressedLength, byte[compressedLength] deflated records
+ * index:   long numRecords, int numBlocks,
+ *          (long offset, long firstRecord)[numBlocks],
+ *          int numRuns, long[numRuns] first record of each run
+ * trailer: long indexOffset, int MAGIC
+ * </pre>
+ *
+ * Records within a block, before deflating:
+ *
+ * <pre>
+ * keyframe: varint timeBits, zigzag varint[numSpecies] populations
+ * record:   varint (timeBits XOR previous timeBits), varint numChanged,
+ *           (varint index gap, zigzag varint change)[numChanged]
+ * </pre>
+ *
+ * XOR-ing the bits of successive times leaves only the low mantissa bits that
+ * differ. DeltaTrajectoryReader decodes the file.
+ *
+ * @author loganlinn
+ *
+ */
+public class DeltaTrajectoryWriter implements TrajectorySink {
+	public static final int MAGIC = 0x53534144; // "SSAD"
+	public static final int VERSION = 2;
+	public static final int RECORDS_PER_BLOCK = 4096;
+
+	private final DataOutputStream out;
+	private final int numSpecies;
+	private final int[] previous;
+	private long previousTimeBits;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+	private byte[] block = new byte[1 << 16]; // Records of the current block
+	private int blockLength = 0;
+	private int blockRecords = 0;
+	private byte[] compressed = new byte[1 << 16];
+	private long position; // File position of the next block
+
+	private long[] blockOffsets = new long[16];
+	private long[] blockFirstRecords = new long[16];
+	private int numBlocks = 0;
+	private long numRecords = 0;
+
+	private long[] runStarts = new long[16];
+	private int numRuns = 0;
+	private boolean runStarted = false;
+
+	/**
+	 * DeltaTrajectoryWriter constructor
+	 *
+	 * @param filePath
+	 * @param speciesToOutput
+	 *            species IDs of the watched species, in record order
+	 * @throws IOException
+	 */
+	public DeltaTrajectoryWriter(String filePath, int[] speciesToOutput)
+			throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filePath), 1 << 16));
+		numSpecies = speciesToOutput.length;
+		previous = new int[numSpecies];
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(numSpecies);
+		for (int speciesId : speciesToOutput) {
+			out.writeInt(speciesId);
+		}
+		position = 12 + 4 * numSpecies;
+	}
+
+	@Override
+	public void record(double time, int[] populations) throws IOException {
+		if (!runStarted) {
+			startRun();
+		}
+		if (blockRecords == RECORDS_PER_BLOCK) {
+			writeBlock();
+		}
+		// Room for the largest possible record
+		ensureCapacity(10 + 5 + numSpecies * 10);
+
+		long timeBits = Double.doubleToRawLongBits(time);
+		if (blockRecords == 0) {
+			/*
+			 * Keyframe
+			 */
+			if (numBlocks == blockOffsets.length) {
+				blockOffsets = grow(blockOffsets);
+				blockFirstRecords = grow(blockFirstRecords);
+			}
+			blockOffsets[numBlocks] = position;
+			blockFirstRecords[numBlocks] = numRecords;
+			numBlocks++;
+
+			putVarint(timeBits);
+			for (int i = 0; i < numSpecies; i++) {
+				putVarint(zigzag(populations[i]));
+				previous[i] = populations[i];
+			}
+		} else {
+			putVarint(timeBits ^ previousTimeBits);
+
+			// Count the changes first, then write them
+			int numChanged = 0;
+			for (int i = 0; i < numSpecies; i++) {
+				if (populations[i] != previous[i]) {
+					numChanged++;
+				}
+			}
+			putVarint(numChanged);
+			int last = -1;
+			for (int i = 0; i < numSpecies; i++) {
+				if (populations[i] != previous[i]) {
+					putVarint(i - last - 1);
+					putVarint(zigzag((long) populations[i] - previous[i]));
+					previous[i] = populations[i];
+					last = i;
+				}
+			}
+		}
+		previousTimeBits = timeBits;
+		blockRecords++;
+		numRecords++;
+	}
+
+	/**
+	 * Remembers where a run's records start
+	 */
+	private void startRun() {
+		if (numRuns == runStarts.length) {
+			runStarts = grow(runStarts);
+		}
+		runStarts[numRuns++] = numRecords;
+		runStarted = true;
+	}
+
+	@Override
+	public void endRun() throws IOException {
+		if (!runStarted) {
+			startRun(); // A run without records still gets an entry
+		}
+		runStarted = false;
+	}
+
+	/**
+	 * Only whole blocks are written, so the open block is held back; it goes
+	 * out when it fills up or on close()
+	 */
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Writes the open block, the block index and the trailer
+	 */
+	@Override
+	public void close() throws IOException {
+		if (blockRecords > 0) {
+			writeBlock();
+		}
+		long indexOffset = position;
+		out.writeLong(numRecords);
+		out.writeInt(numBlocks);
+		for (int i = 0; i < numBlocks; i++) {
+			out.writeLong(blockOffsets[i]);
+			out.writeLong(blockFirstRecords[i]);
+		}
+		out.writeInt(numRuns);
+		for (int i = 0; i < numRuns; i++) {
+			out.writeLong(runStarts[i]);
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(MAGIC);
+		out.close();
+		deflater.end();
+	}
+
+	/**
+	 * Deflates the current block and writes it
+	 */
+	private void writeBlock() throws IOException {
+		deflater.reset();
+		deflater.setInput(block, 0, blockLength);
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == compressed.length) {
+				byte[] grown = new byte[compressed.length * 2];
+				System.arraycopy(compressed, 0, grown, 0, length);
+				compressed = grown;
+			}
+			length += deflater.deflate(compressed, length, compressed.length
+					- length);
+		}
+		out.writeInt(length);
+		out.write(compressed, 0, length);
+		position += 4 + length;
+		blockLength = 0;
+		blockRecords = 0;
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (block.length - blockLength < bytes) {
+			byte[] grown = new byte[Math.max(block.length * 2, blockLength
+					+ bytes)];
+			System.arraycopy(block, 0, grown, 0, blockLength);
+			block = grown;
+		}
+	}
+
+	/**
+	 * Appends an unsigned variable-length integer, 7 bits per byte with the
+	 * high bit set on all but the last
+	 */
+	private void putVarint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			block[blockLength++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		block[blockLength++] = (byte) value;
+	}
+
+	/**
+	 * Maps signed numbers to unsigned ones so small magnitudes stay small
+	 */
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long[] grow(long[] values) {
+		long[] grown = new long[values.length * 2];
+		System.arraycopy(values, 0, grown, 0, values.length);
+		return grown;
+	}
+}
@@ -0,0 +1,152 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Gillespie's direct method. Keeps every propensity in an array together with
+ * their running sum. The time to the next event is drawn from the total
+ * propensity, and the reaction that fires is found by walking the array until
+ * the cumulative propensity passes a uniform random fraction of the total.
+ * Cheaper than a heap for small or highly coupled networks.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class DirectEngine implements SimulationEngine {
+	// Rebuild the total from scratch this often to shed round-off
+	private static final int EVENTS_PER_RESUM = 1 << 16;
+
+	protected final Simulation simulation;
+	protected final ReactionNetwork network;
+	protected final ReactionDependencyTable reactionDependencies;
+	protected final double[] propensities;
+	private double totalPropensity;
+	private double nextEventTime;
+	private boolean scheduled = false;
+	private int eventsSinceResum = 0;
+
+	public DirectEngine(Simulation simulation) {
+		this.simulation = simulation;
+		network = simulation.getNetwork();
+		reactionDependencies = simulation.getReactionDependencies();
+		propensities = new double[network.getNumReactions()];
+	}
+
+	@Override
+	public void reset() {
+		int[] populations = simulation.getPopulations();
+		for (int r = 0; r < propensities.length; r++) {
+			propensities[r] = network.propensity(r, populations);
+		}
+		resum();
+		scheduled = false;
+	}
+
+	@Override
+	public double nextEventTime() {
+		if (!scheduled) {
+			if (totalPropensity > 0) {
+				nextEventTime = simulation.getCurrentTime()
+						+ simulation.getRandom().nextExponential()
+						/ totalPropensity;
+			} else {
+				nextEventTime = Double.POSITIVE_INFINITY;
+			}
+			scheduled = true;
+		}
+		return nextEventTime;
+	}
+
+	@Override
+	public void fireNext() {
+		simulation.setCurrentTime(nextEventTime());
+		scheduled = false;
+
+		int reactionId = selectReaction(simulation.getRandom().nextDouble()
+				* totalPropensity);
+		if (reactionId < 0) {
+			// Only round-off was left in the total; nothing can fire
+			resum();
+			return;
+		}
+		Simulation.Reaction reaction = simulation.getReactions()[reactionId];
+		reaction.fire();
+
+		// Update the reaction that fired and all dependent reactions
+		updatePropensity(reactionId);
+		int[] offsets = reactionDependencies.getOffsets();
+		int[] dependents = reactionDependencies.getDependents();
+		for (int i = offsets[reactionId]; i < offsets[reactionId + 1]; i++) {
+			updatePropensity(dependents[i]);
+		}
+
+		if (++eventsSinceResum == EVENTS_PER_RESUM) {
+			resum();
+		}
+	}
+
+	/**
+	 * Writes the running total, which carries round-off a fresh sum would
+	 * not have
+	 */
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeDouble(totalPropensity);
+		out.writeInt(eventsSinceResum);
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		int[] populations = simulation.getPopulations();
+		for (int r = 0; r < propensities.length; r++) {
+			propensities[r] = network.propensity(r, populations);
+		}
+		totalPropensity = in.readDouble();
+		eventsSinceResum = in.readInt();
+		scheduled = false;
+	}
+
+	/**
+	 * Picks the reaction where the cumulative propensity passes the target
+	 * 
+	 * @param target
+	 *            uniform in [0, total propensity)
+	 * @return the reaction ID, or -1 if every propensity is zero
+	 */
+	protected int selectReaction(double target) {
+		double sum = 0;
+		int last = -1; // Last reaction able to fire, in case of round-off
+		for (int r = 0; r < propensities.length; r++) {
+			if (propensities[r] > 0) {
+				sum += propensities[r];
+				if (target < sum) {
+					return r;
+				}
+				last = r;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Recalculates one reaction's propensity and adjusts the total
+	 */
+	protected void updatePropensity(int reactionId) {
+		double propensity = network.propensity(reactionId, simulation
+				.getPopulations());
+		totalPropensity += propensity - propensities[reactionId];
+		propensities[reactionId] = propensity;
+	}
+
+	/**
+	 * Sums the propensities from scratch
+	 */
+	protected void resum() {
+		double sum = 0;
+		for (double propensity : propensities) {
+			sum += propensity;
+		}
+		totalPropensity = sum;
+		eventsSinceResum = 0;
+	}
+}
@@ -0,0 +1,190 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs an ensemble of independent simulation runs on several threads. Every
+ * worker thread has its own Simulation, so no simulation state is shared
+ * between threads. Runs are handed out in fixed-size blocks and every run is
+ * seeded from the ensemble seed and its run index alone, so a given seed gives
+ * the same results no matter how many threads are used. Each block keeps its
+ * own EnsembleStatistics, and block results are merged into the output
+ * simulation in run order.
+ *
+ * Workers do not write trajectories; only the per-run fire counts and the
+ * ensemble statistics reach the output. With a batch size set, each worker
+ * advances that many runs of its block together on a BatchSimulator instead
+ * of one after another.
+ *
+ * @author loganlinn
+ *
+ */
+public class EnsembleRunner {
+	private static final int BLOCK_SIZE = 64;
+
+	private final SimulationModel model;
+	private final int numThreads;
+	private final long seed;
+	private int batchSize = 0;
+
+	/**
+	 * A worker's simulation, and its batch simulator when runs are batched
+	 */
+	private static class Worker {
+		private final Simulation simulation;
+		private final BatchSimulator batch;
+
+		private Worker(Simulation simulation, BatchSimulator batch) {
+			this.simulation = simulation;
+			this.batch = batch;
+		}
+	}
+
+	/**
+	 * Results of one block of runs. Fire counts are indexed by run within the
+	 * block; the final populations are only kept as statistics.
+	 */
+	private static class BlockResult {
+		private final long[][] fireCounts;
+		private final EnsembleStatistics statistics;
+
+		private BlockResult(int numRuns, int numSpecies, boolean keepQuantiles) {
+			fireCounts = new long[numRuns][];
+			statistics = new EnsembleStatistics(numSpecies, keepQuantiles);
+		}
+	}
+
+	/**
+	 * EnsembleRunner constructor
+	 *
+	 * @param model
+	 *            model every worker simulation is created from
+	 * @param numThreads
+	 * @param seed
+	 *            ensemble seed; run i is seeded with runSeed(seed, i)
+	 */
+	public EnsembleRunner(SimulationModel model, int numThreads, long seed) {
+		this.model = model;
+		this.numThreads = numThreads;
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs the ensemble and adds every run's results to the output simulation
+	 *
+	 * @param numSimulations
+	 *            number of runs
+	 * @param output
+	 *            simulation that collects the results
+	 * @throws Exception
+	 */
+	public void run(int numSimulations, Simulation output) throws Exception {
+		final boolean keepQuantiles = output.getStatistics().hasQuantiles();
+
+		/*
+		 * One simulation per worker thread, handed to blocks through a pool
+		 */
+		final BlockingQueue<Worker> workers = new ArrayBlockingQueue<Worker>(
+				numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			Simulation simulation = new Simulation(model, null);
+			simulation.setRandom(output.getRandom().split()); // Same kind of stream
+			simulation.setEngine(output.getEngineName());
+			workers.add(new Worker(simulation, batchSize > 0 ? new BatchSimulator(
+					simulation, batchSize) : null));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<BlockResult>> blocks = new ArrayList<Future<BlockResult>>();
+			for (int first = 0; first < numSimulations; first += BLOCK_SIZE) {
+				final int firstRun = first;
+				final int numRuns = Math.min(BLOCK_SIZE, numSimulations - first);
+				blocks.add(executor.submit(new Callable<BlockResult>() {
+					@Override
+					public BlockResult call() throws Exception {
+						Worker worker = workers.take();
+						try {
+							return runBlock(worker, firstRun, numRuns,
+									keepQuantiles);
+						} finally {
+							workers.put(worker);
+						}
+					}
+				}));
+			}
+
+			/*
+			 * Merge in run order, releasing each block once merged
+			 */
+			for (int i = 0; i < blocks.size(); i++) {
+				BlockResult result;
+				try {
+					result = blocks.get(i).get();
+				} catch (ExecutionException e) {
+					throw new Exception("Ensemble run failed", e.getCause());
+				}
+				blocks.set(i, null);
+				output.addRuns(result.fireCounts, result.statistics);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Sets how many runs a worker advances together; 0, the default, runs
+	 * them one at a time on the worker's engine. Batched runs always use the
+	 * direct method, so the output simulation's engine should be
+	 * Simulation.ENGINE_DIRECT for the results to match unbatched runs.
+	 * Batches never span blocks, so sizes above the block size act as the
+	 * block size.
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.min(batchSize, BLOCK_SIZE);
+	}
+
+	/**
+	 * Simulates a block of runs on a worker
+	 */
+	private BlockResult runBlock(Worker worker, int firstRun, int numRuns,
+			boolean keepQuantiles) {
+		BlockResult result = new BlockResult(numRuns, model
+				.getSpeciesToOutput().length, keepQuantiles);
+		if (worker.batch != null) {
+			worker.batch.simulate(seed, firstRun, numRuns, result.fireCounts,
+					result.statistics);
+			return result;
+		}
+		Simulation simulation = worker.simulation;
+		for (int i = 0; i < numRuns; i++) {
+			simulation.setSeed(runSeed(seed, firstRun + i));
+			simulation.resetSimulation();
+			simulation.simulate();
+			result.statistics.add(simulation.getPopulationsToOutput());
+			result.fireCounts[i] = simulation.getReactionFireCounts();
+		}
+		return result;
+	}
+
+	/**
+	 * Derives the seed of a single run from the ensemble seed. Uses the
+	 * SplitMix64 finalizer so neighbouring run indices get unrelated seeds,
+	 * and any run can be replayed on its own from the ensemble seed.
+	 *
+	 * @param seed
+	 * @param runIndex
+	 * @return
+	 */
+	public static long runSeed(long seed, long runIndex) {
+		return RandomStream.mix64(seed + (runIndex + 1) * 0x9E3779B97F4A7C15L);
+	}
+}
@@ -0,0 +1,202 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Streaming statistics of the watched species' final populations over an
+ * ensemble of runs. Only O(species) values are kept no matter how many runs
+ * are added: the mean and variance use Welford's updates, in double precision.
+ * Statistics filled by different threads can be merged (Chan et al.), so each
+ * worker can keep its own and hand it over when done.
+ *
+ * @author loganlinn
+ *
+ */
+public class EnsembleStatistics implements Checkpointable {
+	private final int numSpecies;
+	private long numRuns = 0;
+	private final double[] means;
+	private final double[] squaredDeviations; // Sum of squared deviations
+	private final int[] minimums;
+	private final int[] maximums;
+	private final QuantileSketch[] sketches; // null if quantiles are not kept
+
+	/**
+	 * EnsembleStatistics constructor
+	 *
+	 * @param numSpecies
+	 *            number of watched species
+	 * @param keepQuantiles
+	 *            whether to keep quantile sketches as well
+	 */
+	public EnsembleStatistics(int numSpecies, boolean keepQuantiles) {
+		this.numSpecies = numSpecies;
+		means = new double[numSpecies];
+		squaredDeviations = new double[numSpecies];
+		minimums = new int[numSpecies];
+		maximums = new int[numSpecies];
+		if (keepQuantiles) {
+			sketches = new QuantileSketch[numSpecies];
+			for (int i = 0; i < numSpecies; i++) {
+				sketches[i] = new QuantileSketch();
+			}
+		} else {
+			sketches = null;
+		}
+	}
+
+	/**
+	 * Adds the final populations of one run
+	 *
+	 * @param populations
+	 *            watched populations, in the order of the species to output
+	 */
+	public void add(int[] populations) {
+		numRuns++;
+		for (int i = 0; i < numSpecies; i++) {
+			int population = populations[i];
+			double delta = population - means[i];
+			means[i] += delta / numRuns;
+			squaredDeviations[i] += delta * (population - means[i]);
+			if (numRuns == 1 || population < minimums[i]) {
+				minimums[i] = population;
+			}
+			if (numRuns == 1 || population > maximums[i]) {
+				maximums[i] = population;
+			}
+			if (sketches != null) {
+				sketches[i].add(population);
+			}
+		}
+	}
+
+	/**
+	 * Adds all runs counted by another statistics object for the same species
+	 *
+	 * @param other
+	 */
+	public void merge(EnsembleStatistics other) {
+		if (other.numRuns == 0) {
+			return;
+		}
+		long total = numRuns + other.numRuns;
+		for (int i = 0; i < numSpecies; i++) {
+			double delta = other.means[i] - means[i];
+			means[i] += delta * other.numRuns / total;
+			squaredDeviations[i] += other.squaredDeviations[i] + delta * delta
+					* ((double) numRuns * other.numRuns / total);
+			if (numRuns == 0 || other.minimums[i] < minimums[i]) {
+				minimums[i] = other.minimums[i];
+			}
+			if (numRuns == 0 || other.maximums[i] > maximums[i]) {
+				maximums[i] = other.maximums[i];
+			}
+			if (sketches != null && other.sketches != null) {
+				sketches[i].merge(other.sketches[i]);
+			}
+		}
+		numRuns = total;
+	}
+
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeInt(numSpecies);
+		out.writeBoolean(sketches != null);
+		out.writeLong(numRuns);
+		for (int i = 0; i < numSpecies; i++) {
+			out.writeDouble(means[i]);
+			out.writeDouble(squaredDeviations[i]);
+			out.writeInt(minimums[i]);
+			out.writeInt(maximums[i]);
+			if (sketches != null) {
+				sketches[i].writeCheckpoint(out);
+			}
+		}
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		if (in.readInt() != numSpecies
+				|| in.readBoolean() != (sketches != null)) {
+			throw new IOException("Checkpoint statistics do not match");
+		}
+		numRuns = in.readLong();
+		for (int i = 0; i < numSpecies; i++) {
+			means[i] = in.readDouble();
+			squaredDeviations[i] = in.readDouble();
+			minimums[i] = in.readInt();
+			maximums[i] = in.readInt();
+			if (sketches != null) {
+				sketches[i].readCheckpoint(in);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of runs added
+	 */
+	public long getNumRuns() {
+		return numRuns;
+	}
+
+	/**
+	 * @return the number of watched species
+	 */
+	public int getNumSpecies() {
+		return numSpecies;
+	}
+
+	/**
+	 * @param species
+	 *            index into the species to output
+	 * @return the mean final population
+	 */
+	public double getMean(int species) {
+		return means[species];
+	}
+
+	/**
+	 * @param species
+	 *            index into the species to output
+	 * @return the (population) variance of the final population
+	 */
+	public double getVariance(int species) {
+		return numRuns == 0 ? 0 : squaredDeviations[species] / numRuns;
+	}
+
+	/**
+	 * @param species
+	 *            index into the species to output
+	 * @return the smallest final population
+	 */
+	public int getMinimum(int species) {
+		return minimums[species];
+	}
+
+	/**
+	 * @param species
+	 *            index into the species to output
+	 * @return the largest final population
+	 */
+	public int getMaximum(int species) {
+		return maximums[species];
+	}
+
+	/**
+	 * @return whether quantile sketches are kept
+	 */
+	public boolean hasQuantiles() {
+		return sketches != null;
+	}
+
+	/**
+	 * @param species
+	 *            index into the species to output
+	 * @param q
+	 *            between 0 and 1
+	 * @return the approximate quantile of the final population
+	 */
+	public double getQuantile(int species, double q) {
+		return sketches[species].quantile(q);
+	}
+}
@@ -0,0 +1,81 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves a fully written temporary file over the file it replaces, for the
+ * checkpoints and the model cache. Renaming over a file is atomic on POSIX
+ * systems, so a reader finds either the old file or the new one. Where
+ * renaming over a file fails, ie) on Windows, the old file is deleted first;
+ * a crash between the two then leaves only the temporary file.
+ *
+ * After the rename the directory is synced, so the rename itself survives a
+ * power loss. Opening a directory needs FileChannel.open() from Java 7, which
+ * is called by reflection; on older runtimes, and on platforms that cannot
+ * sync a directory, the rename is left to the file system.
+ *
+ * @author loganlinn
+ *
+ */
+public class FileReplacer {
+	private FileReplacer() {
+	}
+
+	/**
+	 * Renames a file over another one and syncs the directory
+	 *
+	 * @param tempFile
+	 *            the new contents, already written and closed
+	 * @param file
+	 *            the file to replace
+	 * @throws IOException
+	 *             if the file could not be replaced
+	 */
+	public static void replace(File tempFile, File file) throws IOException {
+		if (!tempFile.renameTo(file)) {
+			// Renaming over a file fails on some platforms
+			file.delete();
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		}
+		syncDirectory(file.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Forces a directory's entries to the disk, where the runtime and the
+	 * platform allow it
+	 *
+	 * @param directory
+	 */
+	public static void syncDirectory(File directory) {
+		FileChannel channel;
+		try {
+			// FileChannel.open(directory.toPath(), StandardOpenOption.READ)
+			Object path = File.class.getMethod("toPath").invoke(directory);
+			Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+			Object options = Array.newInstance(optionClass, 1);
+			Array.set(options, 0, Class.forName(
+					"java.nio.file.StandardOpenOption").getField("READ").get(
+					null));
+			Method open = FileChannel.class.getMethod("open", Class
+					.forName("java.nio.file.Path"), options.getClass());
+			channel = (FileChannel) open.invoke(null, path, options);
+		} catch (Exception e) {
+			return; // No Java 7, or the directory cannot be opened
+		}
+		try {
+			channel.force(true);
+		} catch (IOException e) {
+			// Not supported for directories here
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing was written
+			}
+		}
+	}
+}
@@ -0,0 +1,350 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Hybrid partitioned simulation. Reactions are split at runtime into slow
+ * and fast ones: a reaction is fast while it accounts for at least FAST_SHARE
+ * of the total propensity and every species it consumes can absorb at least
+ * FAST_FIRINGS more firings. Slow reactions are scheduled exactly as in the
+ * Next Reaction Method, in a ReactionHeap of absolute fire times. Fast
+ * reactions are tau-leaped between slow events, so a fast reversible pair
+ * such as a dimerization no longer costs one step per event.
+ *
+ * When a leap would be too short to pay off, the engine takes SSA_STEPS exact
+ * events before trying to leap again; each one comes from the fast reactions
+ * or the slow heap, whichever fires first. An exact event, fast or slow, only
+ * updates the propensity, partition and fire time of the reaction that fired
+ * and its dependents, so it costs about as much as in the Next Reaction
+ * Method. The whole partition is recomputed after every leap and every
+ * REPARTITION_EVENTS exact events.
+ *
+ * @author loganlinn
+ *
+ */
+public class HybridEngine extends TauLeapingEngine {
+	private static final double FAST_SHARE = 0.01;
+	private static final int FAST_FIRINGS = 100;
+	private static final int REPARTITION_EVENTS = 1 << 10;
+
+	private final ReactionDependencyTable reactionDependencies;
+	private final ReactionHeap slowHeap; // Fast reactions are kept at infinity
+	private final boolean[] slow;
+	private double totalPropensity = 0;
+	private double fastPropensity = 0; // Running sum over the fast reactions
+	private int exactEvents = 0; // Since the last full repartition
+
+	// Fast reaction IDs in no particular order, and each one's position
+	private final int[] fastReactions;
+	private final int[] fastPositions;
+	private int numFast = 0;
+
+	// The planned step
+	private boolean plannedLeap; // Otherwise a single exact event
+	private int plannedReaction = -1; // Exact event, or slow one in the leap
+
+	public HybridEngine(Simulation simulation) {
+		super(simulation);
+		reactionDependencies = simulation.getReactionDependencies();
+		slowHeap = new ReactionHeap(simulation);
+		slow = new boolean[propensities.length];
+		fastReactions = new int[propensities.length];
+		fastPositions = new int[propensities.length];
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+
+		// Every reaction draws a fresh fire time
+		for (int r = 0; r < slow.length; r++) {
+			slow[r] = false;
+			fastReactions[r] = r;
+			fastPositions[r] = r;
+		}
+		numFast = slow.length;
+		repartition(null);
+	}
+
+	@Override
+	protected double planStep() {
+		double now = simulation.getCurrentTime();
+		double totalTime = simulation.getTotalTime();
+		if (now >= totalTime) {
+			return Double.POSITIVE_INFINITY;
+		}
+		int[] populations = simulation.getPopulations();
+		RandomStream random = simulation.getRandom();
+
+		Simulation.Reaction nextSlow = slowHeap.getNextReaction();
+		double slowTime = nextSlow == null ? Double.POSITIVE_INFINITY
+				: nextSlow.getFireTime();
+
+		/*
+		 * Leap when it pays off; otherwise take a run of exact events before
+		 * looking again
+		 */
+		if (numFast > 0 && ssaStepsLeft == 0) {
+			double leap = leapSize(populations, slow);
+			if (leap >= SSA_THRESHOLD / fastPropensity) {
+				return planLeap(leap, nextSlow, slowTime);
+			}
+			ssaStepsLeft = SSA_STEPS;
+		}
+		if (ssaStepsLeft > 0) {
+			ssaStepsLeft--;
+		}
+
+		/*
+		 * One exact event, from whichever subset fires first
+		 */
+		plannedLeap = false;
+		if (numFast > 0 && fastPropensity > 0) {
+			double fastTime = now + random.nextExponential() / fastPropensity;
+			if (fastTime < slowTime) {
+				plannedReaction = selectFast(random.nextDouble()
+						* fastPropensity);
+				return fastTime;
+			}
+		}
+		plannedReaction = nextSlow == null ? -1 : nextSlow.getReactionId();
+		return slowTime;
+	}
+
+	/**
+	 * Leaps the fast reactions up to the next slow event, halving the step
+	 * until no population goes negative
+	 */
+	private double planLeap(double leap, Simulation.Reaction nextSlow,
+			double slowTime) {
+		double now = simulation.getCurrentTime();
+		double totalTime = simulation.getTotalTime();
+		int[] populations = simulation.getPopulations();
+		RandomStream random = simulation.getRandom();
+		plannedLeap = true;
+		while (true) {
+			boolean fireSlow = slowTime <= now + leap;
+			double end = fireSlow ? slowTime : now + leap;
+			if (end >= totalTime) {
+				end = totalTime;
+				fireSlow = false;
+			}
+			double tau = end - now;
+
+			startStep(populations);
+			if (fireSlow) {
+				fire(nextSlow.getReactionId(), 1);
+			}
+			for (int i = 0; i < numFast; i++) {
+				int r = fastReactions[i];
+				long count = random.nextPoisson(propensities[r] * tau);
+				if (count > 0) {
+					fire(r, count);
+				}
+			}
+
+			if (isStepValid()) {
+				plannedReaction = fireSlow ? nextSlow.getReactionId() : -1;
+				return end;
+			}
+			leap /= 2;
+		}
+	}
+
+	/**
+	 * Also writes the partition, the running totals, the order of the fast
+	 * reactions and the slow reactions' fire times
+	 */
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		super.writeCheckpoint(out);
+		out.writeDouble(totalPropensity);
+		out.writeDouble(fastPropensity);
+		out.writeInt(exactEvents);
+		out.writeInt(numFast);
+		for (int i = 0; i < numFast; i++) {
+			out.writeInt(fastReactions[i]);
+		}
+		Simulation.Reaction[] reactions = simulation.getReactions();
+		for (int r = 0; r < slow.length; r++) {
+			out.writeDouble(reactions[r].getFireTime());
+		}
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		super.readCheckpoint(in);
+		totalPropensity = in.readDouble();
+		fastPropensity = in.readDouble();
+		exactEvents = in.readInt();
+		for (int r = 0; r < slow.length; r++) {
+			slow[r] = true;
+		}
+		numFast = in.readInt();
+		for (int i = 0; i < numFast; i++) {
+			int r = in.readInt();
+			fastReactions[i] = r;
+			fastPositions[r] = i;
+			slow[r] = false;
+		}
+		Simulation.Reaction[] reactions = simulation.getReactions();
+		for (int r = 0; r < slow.length; r++) {
+			reactions[r].updatePropensity();
+			propensities[r] = reactions[r].getPropensity();
+			reactions[r].setFireTime(in.readDouble());
+		}
+		slowHeap.refresh();
+	}
+
+	@Override
+	public void fireNext() {
+		boolean leaped = plannedLeap;
+		int reactionId = plannedReaction;
+		super.fireNext();
+
+		Simulation.Reaction[] reactions = simulation.getReactions();
+		if (leaped) {
+			// Any propensity may have changed
+			repartition(reactionId < 0 ? null : reactions[reactionId]);
+		} else if (reactionId >= 0) {
+			update(reactions[reactionId], true);
+			int[] offsets = reactionDependencies.getOffsets();
+			int[] dependents = reactionDependencies.getDependents();
+			for (int i = offsets[reactionId]; i < offsets[reactionId + 1]; i++) {
+				update(reactions[dependents[i]], false);
+			}
+			if (++exactEvents >= REPARTITION_EVENTS) {
+				repartition(null);
+			}
+		}
+	}
+
+	/**
+	 * Applies an exact event directly, leaving the planned step's arrays
+	 * alone
+	 */
+	@Override
+	protected void applyStep() {
+		if (plannedLeap) {
+			super.applyStep();
+		} else if (plannedReaction >= 0) {
+			simulation.getReactions()[plannedReaction].fire();
+		}
+	}
+
+	/**
+	 * Recomputes every propensity and the whole partition, and reschedules
+	 * the slow reactions
+	 *
+	 * @param firedReaction
+	 *            slow reaction that just fired and needs a new fire time, or
+	 *            null
+	 */
+	private void repartition(Simulation.Reaction firedReaction) {
+		int[] populations = simulation.getPopulations();
+		totalPropensity = 0;
+		for (int r = 0; r < propensities.length; r++) {
+			propensities[r] = network.propensity(r, populations);
+			totalPropensity += propensities[r];
+		}
+		for (Simulation.Reaction reaction : simulation.getReactions()) {
+			schedule(reaction, reaction == firedReaction);
+		}
+		slowHeap.refresh();
+		exactEvents = 0;
+
+		// Drop the running sum's round-off
+		fastPropensity = 0;
+		for (int i = 0; i < numFast; i++) {
+			fastPropensity += propensities[fastReactions[i]];
+		}
+	}
+
+	/**
+	 * Recomputes one reaction's propensity and partition, and reschedules it
+	 *
+	 * @param reaction
+	 * @param fired
+	 *            whether the reaction just fired and needs a new fire time
+	 */
+	private void update(Simulation.Reaction reaction, boolean fired) {
+		int reactionId = reaction.getReactionId();
+		double propensity = network.propensity(reactionId, simulation
+				.getPopulations());
+		totalPropensity += propensity - propensities[reactionId];
+		propensities[reactionId] = propensity;
+		schedule(reaction, fired);
+		slowHeap.updateReaction(reaction);
+	}
+
+	/**
+	 * Takes a reaction's recomputed propensity, classifies it, and gives it a
+	 * fire time: infinity if fast, otherwise its old fire time rescaled, or a
+	 * new one if it fired or was fast before. Keeps the fast list and running
+	 * sum up to date, but does not touch the heap.
+	 */
+	private void schedule(Simulation.Reaction reaction, boolean fired) {
+		int reactionId = reaction.getReactionId();
+		double oldPropensity = reaction.getPropensity();
+		reaction.setPropensity(propensities[reactionId]);
+
+		boolean wasSlow = slow[reactionId];
+		if (!wasSlow) {
+			fastPropensity -= oldPropensity;
+		}
+		slow[reactionId] = !isFast(reactionId);
+		if (slow[reactionId] && !wasSlow) {
+			removeFast(reactionId);
+		} else if (!slow[reactionId] && wasSlow) {
+			addFast(reactionId);
+		}
+
+		if (!slow[reactionId]) {
+			fastPropensity += propensities[reactionId];
+			reaction.setFireTime(Double.POSITIVE_INFINITY);
+		} else if (fired || !wasSlow) {
+			reaction.generateFireTime();
+		} else {
+			reaction.rescaleFireTime(oldPropensity);
+		}
+	}
+
+	/**
+	 * Picks the fast reaction where the cumulative propensity passes the
+	 * target
+	 */
+	private int selectFast(double target) {
+		double sum = 0;
+		for (int i = 0; i < numFast; i++) {
+			int r = fastReactions[i];
+			sum += propensities[r];
+			if (target < sum) {
+				return r;
+			}
+		}
+		return fastReactions[numFast - 1]; // Round-off
+	}
+
+	private void addFast(int reactionId) {
+		fastReactions[numFast] = reactionId;
+		fastPositions[reactionId] = numFast;
+		numFast++;
+	}
+
+	/**
+	 * Moves the last fast reaction into the removed one's place
+	 */
+	private void removeFast(int reactionId) {
+		int position = fastPositions[reactionId];
+		int last = fastReactions[--numFast];
+		fastReactions[position] = last;
+		fastPositions[last] = position;
+	}
+
+	private boolean isFast(int reactionId) {
+		double propensity = propensities[reactionId];
+		return propensity > 0
+				&& propensity >= FAST_SHARE * totalPropensity
+				&& firingsLeft(reactionId, simulation.getPopulations()) >= FAST_FIRINGS;
+	}
+}
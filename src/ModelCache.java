@@ -0,0 +1,280 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary snapshot of a loaded model, kept next to the model file so later
+ * launches skip parsing. The snapshot holds the model's initial state, rates
+ * and stoichiometry arrays along with the reaction dependency table, and is
+ * keyed by a hash of the model file's contents: a snapshot of an older
+ * version of the file is ignored and overwritten. Snapshots are memory mapped
+ * and their arrays copied out in bulk.
+ *
+ * File layout (big-endian):
+ *
+ * <pre>
+ * header: int MAGIC, int VERSION, long contentHash, long contentLength,
+ *         int simulationLength, int numSpecies, int numSpeciesToOutput,
+ *         int numReactions, int numReactantTerms, int numProductTerms,
+ *         int numDependents
+ * arrays: int[] populations, int[] speciesToOutput, double[] rates,
+ *         int[] reactantOffsets, int[] reactantSpecies,
+ *         int[] reactantCoefficients, int[] productOffsets,
+ *         int[] productSpecies, int[] productCoefficients,
+ *         int[] dependentOffsets, int[] dependents
+ * </pre>
+ *
+ * A snapshot is written to a temporary file and renamed into place with
+ * FileReplacer, so a concurrent launch never maps a half written one. The
+ * hash only covers the model file, so a snapshot's counts, offsets and
+ * indices are checked when it is read; a damaged snapshot is ignored like an
+ * outdated one.
+ *
+ * @author loganlinn
+ *
+ */
+public class ModelCache {
+	public static final int MAGIC = 0x53534D43; // "SSMC"
+	public static final int VERSION = 1;
+	public static final String EXTENSION = ".cache";
+
+	private final File cacheFile;
+	private final long contentHash;
+	private final long contentLength;
+
+	/**
+	 * Hashes a model file's contents
+	 *
+	 * @param modelFilePath
+	 * @throws IOException
+	 */
+	public ModelCache(String modelFilePath) throws IOException {
+		cacheFile = new File(modelFilePath + EXTENSION);
+
+		RandomAccessFile file = new RandomAccessFile(modelFilePath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			contentLength = channel.size();
+			contentHash = hash(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					contentLength));
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * 64-bit hash of a buffer's contents, 8 bytes at a time
+	 */
+	private static long hash(ByteBuffer buffer) {
+		long hash = buffer.limit();
+		LongBuffer words = buffer.asLongBuffer();
+		while (words.hasRemaining()) {
+			hash = RandomStream.mix64(hash ^ words.get());
+		}
+		for (int i = buffer.limit() & ~7; i < buffer.limit(); i++) {
+			hash = RandomStream.mix64(hash ^ buffer.get(i));
+		}
+		return hash;
+	}
+
+	/**
+	 * Reads the snapshot of the model file, if there is an up to date one
+	 *
+	 * @return the model, with its dependency table, or null if there is no
+	 *         usable snapshot
+	 * @throws IOException
+	 */
+	public SimulationModel load() throws IOException {
+		if (!cacheFile.isFile()) {
+			return null;
+		}
+		RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			return read(buffer);
+		} catch (BufferUnderflowException e) {
+			return null; // Truncated header
+		} finally {
+			file.close();
+		}
+	}
+
+	private SimulationModel read(ByteBuffer buffer) {
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+				|| buffer.getLong() != contentHash
+				|| buffer.getLong() != contentLength) {
+			return null;
+		}
+		int simulationLength = buffer.getInt();
+		int numSpecies = buffer.getInt();
+		int numSpeciesToOutput = buffer.getInt();
+		int numReactions = buffer.getInt();
+		int numReactantTerms = buffer.getInt();
+		int numProductTerms = buffer.getInt();
+		int numDependents = buffer.getInt();
+
+		// The counts must be sane and describe exactly the rest of the file
+		if (simulationLength < 0 || numSpecies < 0 || numSpeciesToOutput < 0
+				|| numReactions < 0 || numReactantTerms < 0
+				|| numProductTerms < 0 || numDependents < 0) {
+			return null;
+		}
+		long bodyLength = 4L * numSpecies + 4L * numSpeciesToOutput + 8L
+				* numReactions + 4L * 3 * (numReactions + 1L) + 4L * 2
+				* numReactantTerms + 4L * 2 * numProductTerms + 4L
+				* numDependents;
+		if (bodyLength != buffer.remaining()) {
+			return null;
+		}
+
+		int[] populations = readInts(buffer, numSpecies);
+		int[] speciesToOutput = readInts(buffer, numSpeciesToOutput);
+		double[] rates = new double[numReactions];
+		buffer.asDoubleBuffer().get(rates);
+		buffer.position(buffer.position() + 8 * numReactions);
+		int[] reactantOffsets = readInts(buffer, numReactions + 1);
+		int[] reactantSpecies = readInts(buffer, numReactantTerms);
+		int[] reactantCoefficients = readInts(buffer, numReactantTerms);
+		int[] productOffsets = readInts(buffer, numReactions + 1);
+		int[] productSpecies = readInts(buffer, numProductTerms);
+		int[] productCoefficients = readInts(buffer, numProductTerms);
+		int[] dependentOffsets = readInts(buffer, numReactions + 1);
+		int[] dependents = readInts(buffer, numDependents);
+
+		if (!isIndexed(speciesToOutput, 1, numSpecies)
+				|| !isIndexed(reactantOffsets, reactantSpecies, 1, numSpecies)
+				|| !isIndexed(productOffsets, productSpecies, 1, numSpecies)
+				|| !isIndexed(dependentOffsets, dependents, 0,
+						numReactions - 1)) {
+			return null;
+		}
+
+		SimulationModel model = new SimulationModel(simulationLength,
+				populations, speciesToOutput, rates, reactantOffsets,
+				reactantSpecies, reactantCoefficients, productOffsets,
+				productSpecies, productCoefficients);
+		model.setReactionDependencies(new ReactionDependencyTable(
+				dependentOffsets, dependents));
+		return model;
+	}
+
+	/**
+	 * @return whether CSR offsets run from 0 to the number of entries without
+	 *         going back, and every entry is within [min, max]
+	 */
+	private static boolean isIndexed(int[] offsets, int[] entries, int min,
+			int max) {
+		if (offsets[0] != 0 || offsets[offsets.length - 1] != entries.length) {
+			return false;
+		}
+		for (int i = 1; i < offsets.length; i++) {
+			if (offsets[i] < offsets[i - 1]) {
+				return false;
+			}
+		}
+		return isIndexed(entries, min, max);
+	}
+
+	/**
+	 * @return whether every value is within [min, max]
+	 */
+	private static boolean isIndexed(int[] values, int min, int max) {
+		for (int value : values) {
+			if (value < min || value > max) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int[] readInts(ByteBuffer buffer, int count) {
+		int[] values = new int[count];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + 4 * count);
+		return values;
+	}
+
+	/**
+	 * Writes a snapshot of the model, replacing any older one
+	 *
+	 * @param model
+	 *            a model loaded from this cache's model file; its dependency
+	 *            table must be set, ie) by creating a Simulation from it
+	 * @throws IOException
+	 */
+	public void save(SimulationModel model) throws IOException {
+		ReactionDependencyTable reactionDependencies = model
+				.getReactionDependencies();
+		File directory = cacheFile.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(cacheFile.getName(), ".tmp",
+				directory);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile),
+							1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(contentHash);
+				out.writeLong(contentLength);
+				out.writeInt(model.getSimulationLength());
+				out.writeInt(model.getNumSpecies());
+				out.writeInt(model.getSpeciesToOutput().length);
+				out.writeInt(model.getNumReactions());
+				out.writeInt(model.getReactantSpecies().length);
+				out.writeInt(model.getProductSpecies().length);
+				out.writeInt(reactionDependencies.getDependents().length);
+
+				writeInts(out, model.getPopulations());
+				writeInts(out, model.getSpeciesToOutput());
+				for (double rate : model.getRates()) {
+					out.writeDouble(rate);
+				}
+				writeInts(out, model.getReactantOffsets());
+				writeInts(out, model.getReactantSpecies());
+				writeInts(out, model.getReactantCoefficients());
+				writeInts(out, model.getProductOffsets());
+				writeInts(out, model.getProductSpecies());
+				writeInts(out, model.getProductCoefficients());
+				writeInts(out, reactionDependencies.getOffsets());
+				writeInts(out, reactionDependencies.getDependents());
+			} finally {
+				out.close();
+			}
+
+			FileReplacer.replace(tempFile, cacheFile);
+		} finally {
+			tempFile.delete(); // Only left if the snapshot was not moved
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values)
+			throws IOException {
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	/**
+	 * @return the hash of the model file's contents
+	 */
+	public long getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @return the snapshot file
+	 */
+	public File getCacheFile() {
+		return cacheFile;
+	}
+}
@@ -0,0 +1,725 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a model (input) file into a SimulationModel. The file is memory
+ * mapped and tokenized directly from its bytes, without creating a String per
+ * line or token. The reaction lines are split into chunks at line boundaries
+ * and parsed in parallel: a first pass counts the lines of every chunk so each
+ * knows the ID of its first reaction, and a second pass parses them. Chunk
+ * results are joined in file order, so the model does not depend on the
+ * number of threads.
+ *
+ * The file format is the one P1 has always read:
+ *
+ * <pre>
+ * numSpecies numReactions numSpeciesToOutput simulationLength
+ * population1 population2 ...
+ * speciesToOutput1 speciesToOutput2 ...
+ * reaction1
+ * reaction2
+ * ...
+ * </pre>
+ *
+ * with reactions like "2S1 -&gt;0.001 S2". Lines after the last reaction are
+ * ignored.
+ *
+ * @author loganlinn
+ *
+ */
+public class ModelLoader {
+	private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+	private static final byte NEWLINE = '\n';
+	private static final byte SPECIES_TOKEN = 'S';
+
+	// Powers of ten that are exact doubles
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * Loads a model file using one thread per processor
+	 *
+	 * @param filePath
+	 * @return the model
+	 * @throws Exception
+	 *             if the file cannot be read or is not a valid model
+	 */
+	public static SimulationModel load(String filePath) throws Exception {
+		return load(filePath, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Loads a model file
+	 *
+	 * @param filePath
+	 * @param numThreads
+	 *            most threads to parse reactions with
+	 * @return the model
+	 * @throws Exception
+	 *             if the file cannot be read or is not a valid model
+	 */
+	public static SimulationModel load(String filePath, int numThreads)
+			throws Exception {
+		RandomAccessFile file = new RandomAccessFile(filePath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Model file too large: " + filePath);
+			}
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					size);
+			return parse(buffer, numThreads);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Parses a whole model file
+	 *
+	 * @param buffer
+	 *            the file's bytes, from position 0 to the limit
+	 * @param numThreads
+	 *            most threads to parse reactions with
+	 * @return the model
+	 * @throws Exception
+	 */
+	public static SimulationModel parse(ByteBuffer buffer, int numThreads)
+			throws Exception {
+		// The first three lines
+		int headerEnd = 0;
+		int numHeaderLines = 0;
+		while (numHeaderLines < 3 && headerEnd < buffer.limit()) {
+			if (buffer.get(headerEnd++) == NEWLINE) {
+				numHeaderLines++;
+			}
+		}
+		byte[] header = read(buffer, 0, headerEnd);
+		Cursor cursor = new Cursor(header, 0, header.length);
+
+		/*
+		 * Line 0: Basic Simulation Information Format: N M D SimulationTime
+		 */
+		if (!cursor.hasLine()) {
+			throw new Exception("Missing line 0");
+		}
+		int[] simulationValues = cursor.readInts(4);
+		if (simulationValues == null) {
+			throw new Exception("Line 0 requires 4 values");
+		}
+		int numSpecies = simulationValues[0];
+		int numReactions = simulationValues[1];
+		int numSpeciesToOutput = simulationValues[2];
+		int simulationLength = simulationValues[3];
+
+		/*
+		 * Line 1: Initial Populations Format: x y z ...
+		 */
+		cursor.nextLine();
+		if (!cursor.hasLine()) {
+			throw new Exception("Missing line 1");
+		}
+		int[] populations = cursor.readInts(numSpecies);
+		if (populations == null) {
+			throw new Exception(
+					"Line 1: Not enough population values provided. Expecting "
+							+ numSpecies);
+		}
+
+		/*
+		 * Line 2: Indices of species included in output
+		 */
+		cursor.nextLine();
+		if (!cursor.hasLine()) {
+			throw new Exception("Missing line 2");
+		}
+		int[] speciesToOutput = cursor.readInts(numSpeciesToOutput);
+		if (speciesToOutput == null) {
+			throw new Exception("Line 2: Not enough indices provided");
+		}
+		cursor.nextLine();
+
+		/*
+		 * Line 3 on: Reactions
+		 */
+		Chunk[] chunks = split(buffer, cursor.getPosition(), numThreads);
+		int numWorkers = Math.min(numThreads, chunks.length);
+		ExecutorService executor = numWorkers > 1 ? Executors
+				.newFixedThreadPool(numWorkers) : null;
+		try {
+			// Pass 1: count lines, to find each chunk's first reaction
+			runAll(executor, chunks, true);
+			int numLines = 0;
+			for (Chunk chunk : chunks) {
+				chunk.firstReaction = numLines;
+				chunk.numReactions = Math.max(Math.min(chunk.numLines,
+						numReactions - numLines), 0);
+				numLines += chunk.numLines;
+			}
+			if (numLines < numReactions) {
+				throw new Exception("Line " + (4 + numLines)
+						+ ": Missing reaction " + numLines + ". Expecting "
+						+ (numReactions - numLines) + " reactions.");
+			}
+
+			// Pass 2: parse the reactions
+			runAll(executor, chunks, false);
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+
+		return join(chunks, numReactions, simulationLength, populations,
+				speciesToOutput);
+	}
+
+	/**
+	 * Copies a range of a buffer; plain arrays are much faster to scan byte by
+	 * byte than a mapped buffer
+	 */
+	private static byte[] read(ByteBuffer buffer, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		ByteBuffer view = buffer.duplicate();
+		view.position(from);
+		view.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Splits the bytes from start to the end of the buffer into chunks of
+	 * whole lines
+	 */
+	private static Chunk[] split(ByteBuffer buffer, int start, int numThreads) {
+		int end = buffer.limit();
+		int numChunks = Math.max(1, Math.min(4 * numThreads, (end - start)
+				/ MIN_CHUNK_SIZE));
+		long chunkSize = ((long) end - start + numChunks - 1) / numChunks;
+		List<Chunk> chunks = new ArrayList<Chunk>(numChunks);
+		int chunkStart = start;
+		while (chunkStart < end) {
+			int chunkEnd = (int) Math.min(end, chunkStart + chunkSize);
+			// Move the end past the next newline
+			while (chunkEnd < end && buffer.get(chunkEnd - 1) != NEWLINE) {
+				chunkEnd++;
+			}
+			chunks.add(new Chunk(buffer, chunkStart, chunkEnd));
+			chunkStart = chunkEnd;
+		}
+		return chunks.toArray(new Chunk[chunks.size()]);
+	}
+
+	/**
+	 * Runs one pass over every chunk, in parallel when an executor is given
+	 *
+	 * @param countOnly
+	 *            true to count lines, false to parse reactions
+	 */
+	private static void runAll(ExecutorService executor, Chunk[] chunks,
+			final boolean countOnly) throws Exception {
+		if (executor == null) {
+			for (Chunk chunk : chunks) {
+				chunk.run(countOnly);
+			}
+			return;
+		}
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks.length);
+		for (final Chunk chunk : chunks) {
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					chunk.run(countOnly);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Joins the chunks' reactions, in file order, into a model
+	 */
+	private static SimulationModel join(Chunk[] chunks, int numReactions,
+			int simulationLength, int[] populations, int[] speciesToOutput) {
+		int numReactantTerms = 0;
+		int numProductTerms = 0;
+		for (Chunk chunk : chunks) {
+			numReactantTerms += chunk.numReactantTerms;
+			numProductTerms += chunk.numProductTerms;
+		}
+
+		double[] rates = new double[numReactions];
+		int[] reactantOffsets = new int[numReactions + 1];
+		int[] reactantSpecies = new int[numReactantTerms];
+		int[] reactantCoefficients = new int[numReactantTerms];
+		int[] productOffsets = new int[numReactions + 1];
+		int[] productSpecies = new int[numProductTerms];
+		int[] productCoefficients = new int[numProductTerms];
+
+		int reactantIndex = 0;
+		int productIndex = 0;
+		for (Chunk chunk : chunks) {
+			int first = chunk.firstReaction;
+			for (int r = 0; r < chunk.numReactions; r++) {
+				rates[first + r] = chunk.rates[r];
+				reactantOffsets[first + r] = reactantIndex
+						+ chunk.reactantOffsets[r];
+				productOffsets[first + r] = productIndex
+						+ chunk.productOffsets[r];
+			}
+			System.arraycopy(chunk.reactantSpecies, 0, reactantSpecies,
+					reactantIndex, chunk.numReactantTerms);
+			System.arraycopy(chunk.reactantCoefficients, 0,
+					reactantCoefficients, reactantIndex, chunk.numReactantTerms);
+			System.arraycopy(chunk.productSpecies, 0, productSpecies,
+					productIndex, chunk.numProductTerms);
+			System.arraycopy(chunk.productCoefficients, 0,
+					productCoefficients, productIndex, chunk.numProductTerms);
+			reactantIndex += chunk.numReactantTerms;
+			productIndex += chunk.numProductTerms;
+		}
+		reactantOffsets[numReactions] = reactantIndex;
+		productOffsets[numReactions] = productIndex;
+
+		return new SimulationModel(simulationLength, populations,
+				speciesToOutput, rates, reactantOffsets, reactantSpecies,
+				reactantCoefficients, productOffsets, productSpecies,
+				productCoefficients);
+	}
+
+	/**
+	 * A run of whole reaction lines, and the reactions parsed from them in
+	 * CSR layout with chunk-local offsets
+	 */
+	private static class Chunk {
+		private final ByteBuffer buffer;
+		private final int start;
+		private final int end;
+		private byte[] data; // The chunk's bytes, while it is being read
+
+		private int numLines;
+		private int firstReaction; // ID of the reaction on the first line
+		private int numReactions; // Lines to parse as reactions
+
+		private double[] rates;
+		private int[] reactantOffsets;
+		private int[] productOffsets;
+		private int numReactantTerms = 0;
+		private int[] reactantSpecies = new int[16];
+		private int[] reactantCoefficients = new int[16];
+		private int numProductTerms = 0;
+		private int[] productSpecies = new int[16];
+		private int[] productCoefficients = new int[16];
+
+		private Chunk(ByteBuffer buffer, int start, int end) {
+			this.buffer = buffer;
+			this.start = start;
+			this.end = end;
+		}
+
+		private void run(boolean countOnly) throws Exception {
+			if (countOnly) {
+				countLines();
+			} else {
+				parseReactions();
+			}
+		}
+
+		private void countLines() {
+			data = read(buffer, start, end);
+			numLines = 0;
+			for (byte b : data) {
+				if (b == NEWLINE) {
+					numLines++;
+				}
+			}
+			// Last line of the file without a newline
+			if (data.length > 0 && data[data.length - 1] != NEWLINE) {
+				numLines++;
+			}
+		}
+
+		private void parseReactions() throws Exception {
+			rates = new double[numReactions];
+			reactantOffsets = new int[numReactions];
+			productOffsets = new int[numReactions];
+			Cursor cursor = new Cursor(data, 0, data.length);
+			for (int r = 0; r < numReactions; r++) {
+				reactantOffsets[r] = numReactantTerms;
+				productOffsets[r] = numProductTerms;
+				parseReaction(cursor, r);
+				cursor.nextLine();
+			}
+			data = null;
+		}
+
+		/**
+		 * Parses the reaction on the cursor's line; the same syntax as
+		 * Simulation.Reaction.parse()
+		 */
+		private void parseReaction(Cursor cursor, int r) throws Exception {
+			int lineStart = cursor.getPosition();
+			int lineEnd = cursor.lineEnd();
+			if (lineEnd == lineStart
+					|| (lineEnd == lineStart + 1 && data[lineStart] == '\r')) {
+				throw new Exception("Empty reaction text");
+			}
+
+			boolean parsedReactantProductSeparator = false;
+			boolean parsedReactionRate = false;
+			int coefficient = 0;
+			boolean hasCoefficient = false; // Read as a separate token
+
+			while (cursor.nextToken(!parsedReactantProductSeparator)) {
+				int tokenStart = cursor.getTokenStart();
+				int tokenEnd = cursor.getTokenEnd();
+
+				if (!parsedReactantProductSeparator && cursor.isSeparator()) {
+					/*
+					 * Detect the reactant/product separator
+					 */
+					parsedReactantProductSeparator = true;
+
+				} else if (parsedReactantProductSeparator
+						&& !parsedReactionRate) {
+					/*
+					 * Immediately after the separator (->)
+					 */
+					rates[r] = cursor.parseDouble(tokenStart, tokenEnd);
+					parsedReactionRate = true;
+
+				} else {
+					int speciesTokenIndex = cursor.indexOf(SPECIES_TOKEN,
+							tokenStart, tokenEnd);
+					if (speciesTokenIndex >= 0) {
+						/*
+						 * Appears to be a species identifier, ie S1
+						 */
+						if (speciesTokenIndex == tokenEnd - 1) {
+							throw new Exception("Could not specify Species ID");
+						}
+						int speciesId = cursor.parseInt(speciesTokenIndex + 1,
+								tokenEnd);
+						if (!hasCoefficient) {
+							coefficient = speciesTokenIndex > tokenStart ? cursor
+									.parseInt(tokenStart, speciesTokenIndex)
+									: 1;
+						}
+						if (parsedReactantProductSeparator) {
+							addProduct(speciesId, coefficient);
+						} else {
+							addReactant(speciesId, coefficient);
+						}
+						hasCoefficient = false;
+					} else {
+						coefficient = cursor.parseInt(tokenStart, tokenEnd);
+						hasCoefficient = true;
+					}
+				}
+			}
+
+			if (!parsedReactantProductSeparator) {
+				throw new Exception("Invalid reaction syntax: "
+						+ cursor.text(lineStart, lineEnd));
+			}
+		}
+
+		private void addReactant(int speciesId, int coefficient) {
+			if (numReactantTerms == reactantSpecies.length) {
+				reactantSpecies = Arrays.copyOf(reactantSpecies,
+						2 * numReactantTerms);
+				reactantCoefficients = Arrays.copyOf(reactantCoefficients,
+						2 * numReactantTerms);
+			}
+			reactantSpecies[numReactantTerms] = speciesId;
+			reactantCoefficients[numReactantTerms] = coefficient;
+			numReactantTerms++;
+		}
+
+		private void addProduct(int speciesId, int coefficient) {
+			if (numProductTerms == productSpecies.length) {
+				productSpecies = Arrays.copyOf(productSpecies,
+						2 * numProductTerms);
+				productCoefficients = Arrays.copyOf(productCoefficients,
+						2 * numProductTerms);
+			}
+			productSpecies[numProductTerms] = speciesId;
+			productCoefficients[numProductTerms] = coefficient;
+			numProductTerms++;
+		}
+	}
+
+	/**
+	 * Walks the lines and tokens of a range of bytes. Tokens are separated by
+	 * whitespace, and "->" is always a token of its own.
+	 */
+	private static class Cursor {
+		private final byte[] data;
+		private final int end;
+		private int position;
+		private int tokenStart;
+		private int tokenEnd;
+
+		private Cursor(byte[] data, int start, int end) {
+			this.data = data;
+			this.position = start;
+			this.end = end;
+		}
+
+		private int getPosition() {
+			return position;
+		}
+
+		private int getTokenStart() {
+			return tokenStart;
+		}
+
+		private int getTokenEnd() {
+			return tokenEnd;
+		}
+
+		/**
+		 * @return true if there is a line left
+		 */
+		private boolean hasLine() {
+			return position < end;
+		}
+
+		/**
+		 * @return the end of the current line, before its newline
+		 */
+		private int lineEnd() {
+			int i = position;
+			while (i < end && data[i] != NEWLINE) {
+				i++;
+			}
+			return i;
+		}
+
+		/**
+		 * Moves to the start of the next line
+		 */
+		private void nextLine() {
+			position = lineEnd();
+			if (position < end) {
+				position++;
+			}
+		}
+
+		private static boolean isSpace(byte b) {
+			return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+		}
+
+		private boolean isSeparatorAt(int i) {
+			return i + 1 < end && data[i] == '-'
+					&& data[i + 1] == '>';
+		}
+
+		/**
+		 * Finds the next token on the current line
+		 *
+		 * @param splitSeparator
+		 *            whether "->" ends a token
+		 * @return false at the end of the line
+		 */
+		private boolean nextToken(boolean splitSeparator) {
+			while (position < end && isSpace(data[position])) {
+				position++;
+			}
+			if (position == end || data[position] == NEWLINE) {
+				return false;
+			}
+			tokenStart = position;
+			if (splitSeparator && isSeparatorAt(position)) {
+				position += 2;
+			} else {
+				while (position < end) {
+					byte b = data[position];
+					if (b == NEWLINE || isSpace(b)
+							|| (splitSeparator && isSeparatorAt(position))) {
+						break;
+					}
+					position++;
+				}
+			}
+			tokenEnd = position;
+			return true;
+		}
+
+		/**
+		 * @return whether the current token is "->"
+		 */
+		private boolean isSeparator() {
+			return tokenEnd - tokenStart == 2 && isSeparatorAt(tokenStart);
+		}
+
+		/**
+		 * Reads integers from the current line
+		 *
+		 * @param count
+		 * @return the integers, or null if the line has fewer
+		 */
+		private int[] readInts(int count) {
+			int[] values = new int[count];
+			for (int i = 0; i < count; i++) {
+				if (!nextToken(false)) {
+					return null;
+				}
+				values[i] = parseInt(tokenStart, tokenEnd);
+			}
+			return values;
+		}
+
+		private int indexOf(byte b, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (data[i] == b) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Parses a decimal integer, like Integer.parseInt()
+		 */
+		private int parseInt(int from, int to) {
+			int i = from;
+			boolean negative = false;
+			if (i < to && (data[i] == '-' || data[i] == '+')) {
+				negative = data[i] == '-';
+				i++;
+			}
+			if (i == to) {
+				throw new NumberFormatException("For input string: \""
+						+ text(from, to) + "\"");
+			}
+			long value = 0;
+			for (; i < to; i++) {
+				int digit = data[i] - '0';
+				if (digit < 0 || digit > 9) {
+					throw new NumberFormatException("For input string: \""
+							+ text(from, to) + "\"");
+				}
+				value = value * 10 + digit;
+				if (value > (long) Integer.MAX_VALUE + 1) {
+					throw new NumberFormatException("For input string: \""
+							+ text(from, to) + "\"");
+				}
+			}
+			value = negative ? -value : value;
+			if (value > Integer.MAX_VALUE) {
+				throw new NumberFormatException("For input string: \""
+						+ text(from, to) + "\"");
+			}
+			return (int) value;
+		}
+
+		/**
+		 * Parses a decimal number. Plain numbers with at most 15 significant
+		 * digits, ie) 0.001 or 2.5e3, are exact in a double along with the
+		 * power of ten that scales them, so one multiplication or division
+		 * rounds them correctly. Anything else goes to Double.parseDouble().
+		 */
+		private double parseDouble(int from, int to) {
+			int i = from;
+			boolean negative = false;
+			if (i < to && (data[i] == '-' || data[i] == '+')) {
+				negative = data[i] == '-';
+				i++;
+			}
+			long mantissa = 0;
+			boolean anyDigits = false;
+			int digits = 0; // Significant digits
+			int scale = 0; // Power of ten to multiply the mantissa by
+			boolean point = false;
+			for (; i < to; i++) {
+				byte b = data[i];
+				if (b >= '0' && b <= '9') {
+					anyDigits = true;
+					if (mantissa != 0 || b != '0') {
+						digits++;
+					}
+					mantissa = mantissa * 10 + (b - '0');
+					if (point) {
+						scale--;
+					}
+					if (digits > 15) {
+						return slowParseDouble(from, to);
+					}
+				} else if (b == '.' && !point) {
+					point = true;
+				} else {
+					break;
+				}
+			}
+			if (i < to) {
+				byte b = data[i];
+				if ((b != 'e' && b != 'E') || i + 1 == to) {
+					return slowParseDouble(from, to);
+				}
+				int exponent;
+				try {
+					exponent = parseInt(i + 1, to);
+				} catch (NumberFormatException e) {
+					return slowParseDouble(from, to);
+				}
+				if (Math.abs(exponent) > 2 * POWERS_OF_TEN.length) {
+					return slowParseDouble(from, to);
+				}
+				scale += exponent;
+			}
+			if (!anyDigits || Math.abs(scale) >= POWERS_OF_TEN.length) {
+				return slowParseDouble(from, to);
+			}
+
+			double value = mantissa;
+			if (scale < 0) {
+				value /= POWERS_OF_TEN[-scale];
+			} else {
+				value *= POWERS_OF_TEN[scale];
+			}
+			return negative ? -value : value;
+		}
+
+		private double slowParseDouble(int from, int to) {
+			return Double.parseDouble(text(from, to));
+		}
+
+		/**
+		 * @return the bytes in a range as a String, for errors and fallbacks
+		 */
+		private String text(int from, int to) {
+			char[] chars = new char[to - from];
+			for (int i = from; i < to; i++) {
+				chars[i - from] = (char) (data[i] & 0xff);
+			}
+			return new String(chars);
+		}
+	}
+}
@@ -0,0 +1,407 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Generates random reaction networks in the P1 input format, for load tests
+ * and benchmarks. The same parameters and seed always give the same network.
+ *
+ * <pre>
+ * java NetworkGenerator output.txt -species N -reactions M [-seed S]
+ *     [-orders zero,first,second,homodimer] [-fanout F] [-ratespread D]
+ *     [-population P] [-length T] [-output D]
+ * </pre>
+ *
+ * Every reaction draws its order from the order weights: zero order (-&gt;
+ * S1), first order (S1 -&gt;), second order between two species (S1 S2 -&gt;)
+ * or a homodimer (2S1 -&gt;). It makes zero to two products, drawn from all
+ * species. Reactants are drawn from the first K species only, with K chosen
+ * so every one of them is read by about F reactions: a small fan-out gives a
+ * sparse network, a large one a highly coupled network with long dependency
+ * lists. Without -fanout all species are reactants.
+ *
+ * Rates are set so every reaction's propensity is about 1 at the typical
+ * population P, then spread log-uniformly over D orders of magnitude.
+ * Initial populations are uniform between P/2 and 3P/2.
+ *
+ * @author loganlinn
+ *
+ */
+public class NetworkGenerator {
+	public static final int ZERO_ORDER = 0;
+	public static final int FIRST_ORDER = 1;
+	public static final int SECOND_ORDER = 2;
+	public static final int HOMODIMER = 3;
+
+	private static final double[] DEFAULT_ORDER_WEIGHTS = { 0.05, 0.5, 0.3,
+			0.15 };
+	private static final double[] PRODUCT_COUNT_WEIGHTS = { 0.1, 0.6, 0.3 };
+
+	private final int numSpecies;
+	private final int numReactions;
+	private final long seed;
+	private double[] orderWeights = DEFAULT_ORDER_WEIGHTS;
+	private double fanout = 0; // 0 to use every species as a reactant
+	private double rateSpread = 0; // In orders of magnitude
+	private int population = 1000;
+	private int simulationLength = 10;
+	private int numOutput = 1;
+
+	/**
+	 * NetworkGenerator constructor
+	 *
+	 * @param numSpecies
+	 * @param numReactions
+	 * @param seed
+	 */
+	public NetworkGenerator(int numSpecies, int numReactions, long seed) {
+		if (numSpecies < 1 || numReactions < 0) {
+			throw new IllegalArgumentException(
+					"Need at least one species and no negative reaction count");
+		}
+		this.numSpecies = numSpecies;
+		this.numReactions = numReactions;
+		this.seed = seed;
+	}
+
+	/**
+	 * Generates the network
+	 *
+	 * @return the model
+	 */
+	public SimulationModel generate() {
+		RandomStream random = new Xoshiro256StarStar(seed);
+
+		int[] populations = new int[numSpecies];
+		for (int s = 0; s < numSpecies; s++) {
+			populations[s] = population / 2
+					+ (int) (random.nextDouble() * (population + 1));
+		}
+		int[] speciesToOutput = new int[Math.min(numOutput, numSpecies)];
+		for (int i = 0; i < speciesToOutput.length; i++) {
+			speciesToOutput[i] = i + 1;
+		}
+
+		/*
+		 * Size the reactant pool for the fan-out
+		 */
+		double totalWeight = 0;
+		for (double weight : orderWeights) {
+			totalWeight += weight;
+		}
+		double reactantsPerReaction = (orderWeights[FIRST_ORDER] + 2
+				* orderWeights[SECOND_ORDER] + orderWeights[HOMODIMER])
+				/ totalWeight;
+		int numReactantSpecies = numSpecies;
+		if (fanout > 0) {
+			numReactantSpecies = (int) Math.round(numReactions
+					* reactantsPerReaction / fanout);
+			numReactantSpecies = Math.max(1, Math.min(numSpecies,
+					numReactantSpecies));
+		}
+		double p = Math.max(population, 2);
+
+		double[] rates = new double[numReactions];
+		int[] reactantOffsets = new int[numReactions + 1];
+		int[] reactantSpecies = new int[2 * numReactions];
+		int[] reactantCoefficients = new int[2 * numReactions];
+		int[] productOffsets = new int[numReactions + 1];
+		int[] productSpecies = new int[2 * numReactions];
+		int[] productCoefficients = new int[2 * numReactions];
+		int numReactantTerms = 0;
+		int numProductTerms = 0;
+		for (int r = 0; r < numReactions; r++) {
+			reactantOffsets[r] = numReactantTerms;
+			productOffsets[r] = numProductTerms;
+
+			int order = pick(random, orderWeights);
+			if (order == SECOND_ORDER && numReactantSpecies < 2) {
+				order = HOMODIMER;
+			}
+			double rate;
+			switch (order) {
+			case ZERO_ORDER:
+				rate = 1;
+				break;
+			case FIRST_ORDER:
+				reactantSpecies[numReactantTerms] = species(random,
+						numReactantSpecies);
+				reactantCoefficients[numReactantTerms++] = 1;
+				rate = 1 / p;
+				break;
+			case SECOND_ORDER:
+				int first = species(random, numReactantSpecies);
+				int second;
+				do {
+					second = species(random, numReactantSpecies);
+				} while (second == first);
+				reactantSpecies[numReactantTerms] = first;
+				reactantCoefficients[numReactantTerms++] = 1;
+				reactantSpecies[numReactantTerms] = second;
+				reactantCoefficients[numReactantTerms++] = 1;
+				rate = 1 / (p * p);
+				break;
+			default:
+				reactantSpecies[numReactantTerms] = species(random,
+						numReactantSpecies);
+				reactantCoefficients[numReactantTerms++] = 2;
+				rate = 1 / (p * (p - 1));
+				break;
+			}
+			rates[r] = rate
+					* Math.pow(10, rateSpread * (random.nextDouble() - 0.5));
+
+			// Zero order reactions make at least one product
+			int numProducts = pick(random, PRODUCT_COUNT_WEIGHTS);
+			if (order == ZERO_ORDER && numProducts == 0) {
+				numProducts = 1;
+			}
+			int lastProduct = 0;
+			for (int i = 0; i < numProducts; i++) {
+				int product = species(random, numSpecies);
+				if (product == lastProduct) {
+					productCoefficients[numProductTerms - 1]++;
+				} else {
+					productSpecies[numProductTerms] = product;
+					productCoefficients[numProductTerms++] = 1;
+					lastProduct = product;
+				}
+			}
+		}
+		reactantOffsets[numReactions] = numReactantTerms;
+		productOffsets[numReactions] = numProductTerms;
+
+		return new SimulationModel(simulationLength, populations,
+				speciesToOutput, rates, reactantOffsets, trim(reactantSpecies,
+						numReactantTerms), trim(reactantCoefficients,
+						numReactantTerms), productOffsets, trim(productSpecies,
+						numProductTerms), trim(productCoefficients,
+						numProductTerms));
+	}
+
+	/**
+	 * @return an index drawn with probability proportional to its weight
+	 */
+	private static int pick(RandomStream random, double[] weights) {
+		double total = 0;
+		for (double weight : weights) {
+			total += weight;
+		}
+		double target = random.nextDouble() * total;
+		for (int i = 0; i < weights.length - 1; i++) {
+			target -= weights[i];
+			if (target < 0) {
+				return i;
+			}
+		}
+		return weights.length - 1;
+	}
+
+	/**
+	 * @return a species ID from 1 to count
+	 */
+	private static int species(RandomStream random, int count) {
+		return 1 + (int) (random.nextDouble() * count);
+	}
+
+	private static int[] trim(int[] values, int length) {
+		int[] trimmed = new int[length];
+		System.arraycopy(values, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	/**
+	 * Writes a model in the P1 input format
+	 *
+	 * @param model
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(SimulationModel model, Writer out)
+			throws IOException {
+		StringBuilder line = new StringBuilder();
+		line.append(model.getNumSpecies()).append(' ').append(
+				model.getNumReactions()).append(' ').append(
+				model.getSpeciesToOutput().length).append(' ').append(
+				model.getSimulationLength()).append('\n');
+		out.write(line.toString());
+
+		writeInts(model.getPopulations(), line, out);
+		writeInts(model.getSpeciesToOutput(), line, out);
+
+		for (int r = 0; r < model.getNumReactions(); r++) {
+			line.setLength(0);
+			appendTerms(model.getReactantOffsets(),
+					model.getReactantSpecies(), model
+							.getReactantCoefficients(), r, line);
+			line.append("->").append(
+					String.format(Locale.US, "%.6g", model.getRates()[r]));
+			line.append(' ');
+			appendTerms(model.getProductOffsets(), model.getProductSpecies(),
+					model.getProductCoefficients(), r, line);
+			line.setCharAt(line.length() - 1, '\n');
+			out.write(line.toString());
+		}
+	}
+
+	private static void writeInts(int[] values, StringBuilder line, Writer out)
+			throws IOException {
+		line.setLength(0);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				line.append(' ');
+			}
+			line.append(values[i]);
+		}
+		line.append('\n');
+		out.write(line.toString());
+	}
+
+	/**
+	 * Appends one reaction's terms, each followed by a space
+	 */
+	private static void appendTerms(int[] offsets, int[] species,
+			int[] coefficients, int r, StringBuilder line) {
+		for (int i = offsets[r]; i < offsets[r + 1]; i++) {
+			if (coefficients[i] != 1) {
+				line.append(coefficients[i]);
+			}
+			line.append('S').append(species[i]).append(' ');
+		}
+	}
+
+	// ------------ Standard setters -------------------
+
+	/**
+	 * @param orderWeights
+	 *            relative weights of zero order, first order, second order
+	 *            and homodimer reactions
+	 */
+	public void setOrderWeights(double[] orderWeights) {
+		if (orderWeights.length != DEFAULT_ORDER_WEIGHTS.length) {
+			throw new IllegalArgumentException("Need "
+					+ DEFAULT_ORDER_WEIGHTS.length + " order weights");
+		}
+		this.orderWeights = orderWeights.clone();
+	}
+
+	/**
+	 * @param fanout
+	 *            mean number of reactions reading each reactant species, or
+	 *            0 to use every species as a reactant
+	 */
+	public void setFanout(double fanout) {
+		this.fanout = fanout;
+	}
+
+	/**
+	 * @param rateSpread
+	 *            orders of magnitude the rates are spread over
+	 */
+	public void setRateSpread(double rateSpread) {
+		this.rateSpread = rateSpread;
+	}
+
+	/**
+	 * @param population
+	 *            typical initial population
+	 */
+	public void setPopulation(int population) {
+		this.population = population;
+	}
+
+	/**
+	 * @param simulationLength
+	 */
+	public void setSimulationLength(int simulationLength) {
+		this.simulationLength = simulationLength;
+	}
+
+	/**
+	 * @param numOutput
+	 *            number of species to output, the first ones
+	 */
+	public void setNumOutput(int numOutput) {
+		this.numOutput = numOutput;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: NetworkGenerator <output.txt> -species N -reactions M [-seed S] [-orders z,f,s,h] [-fanout F] [-ratespread D] [-population P] [-length T] [-output D]");
+			return;
+		}
+		int numSpecies = 0;
+		int numReactions = 0;
+		long seed = 0;
+		double[] orderWeights = null;
+		double fanout = 0;
+		double rateSpread = 0;
+		Integer population = null;
+		Integer simulationLength = null;
+		Integer numOutput = null;
+		for (int i = 1; i < args.length; i++) {
+			if (i + 1 == args.length) {
+				System.err.println("Unknown argument: " + args[i]);
+				return;
+			}
+			String option = args[i];
+			String value = args[++i];
+			if ("-species".equals(option)) {
+				numSpecies = Integer.parseInt(value);
+			} else if ("-reactions".equals(option)) {
+				numReactions = Integer.parseInt(value);
+			} else if ("-seed".equals(option)) {
+				seed = Long.parseLong(value);
+			} else if ("-orders".equals(option)) {
+				String[] weights = value.split(",");
+				orderWeights = new double[weights.length];
+				for (int w = 0; w < weights.length; w++) {
+					orderWeights[w] = Double.parseDouble(weights[w]);
+				}
+			} else if ("-fanout".equals(option)) {
+				fanout = Double.parseDouble(value);
+			} else if ("-ratespread".equals(option)) {
+				rateSpread = Double.parseDouble(value);
+			} else if ("-population".equals(option)) {
+				population = Integer.parseInt(value);
+			} else if ("-length".equals(option)) {
+				simulationLength = Integer.parseInt(value);
+			} else if ("-output".equals(option)) {
+				numOutput = Integer.parseInt(value);
+			} else {
+				System.err.println("Unknown argument: " + option);
+				return;
+			}
+		}
+
+		NetworkGenerator generator = new NetworkGenerator(numSpecies,
+				numReactions, seed);
+		if (orderWeights != null) {
+			generator.setOrderWeights(orderWeights);
+		}
+		generator.setFanout(fanout);
+		generator.setRateSpread(rateSpread);
+		if (population != null) {
+			generator.setPopulation(population);
+		}
+		if (simulationLength != null) {
+			generator.setSimulationLength(simulationLength);
+		}
+		if (numOutput != null) {
+			generator.setNumOutput(numOutput);
+		}
+
+		try {
+			Writer out = new BufferedWriter(new FileWriter(args[0]), 1 << 16);
+			try {
+				write(generator.generate(), out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Gibson & Bruck's Next Reaction Method. Every reaction keeps an absolute
+ * fire time in a ReactionHeap; the earliest one fires. Only the reaction that
+ * fired draws a new random number, and its dependent reactions rescale their
+ * pending fire times to their new propensities.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class NextReactionEngine implements SimulationEngine {
+	private final Simulation simulation;
+	private final ReactionDependencyTable reactionDependencies;
+	private final ReactionHeap reactionHeap;
+
+	public NextReactionEngine(Simulation simulation) {
+		this.simulation = simulation;
+		reactionDependencies = simulation.getReactionDependencies();
+		reactionHeap = new ReactionHeap(simulation);
+	}
+
+	@Override
+	public void reset() {
+		for (Simulation.Reaction reaction : simulation.getReactions()) {
+			reaction.updatePropensity();
+			reaction.generateFireTime();
+		}
+
+		// Reorder the heap for the new fire times
+		reactionHeap.refresh();
+	}
+
+	@Override
+	public double nextEventTime() {
+		Simulation.Reaction reaction = reactionHeap.getNextReaction();
+		return reaction == null ? Double.POSITIVE_INFINITY : reaction
+				.getFireTime();
+	}
+
+	@Override
+	public void fireNext() {
+		/*
+		 * 1) Pick next reaction to fire
+		 */
+		Simulation.Reaction reaction = reactionHeap.getNextReaction();
+
+		/*
+		 * 2) Update simulation clock from reaction time. Fire times are
+		 * absolute, so the other reactions do not need to be touched
+		 */
+		simulation.setCurrentTime(reaction.getFireTime());
+
+		/*
+		 * 3) Update populations
+		 */
+		reaction.fire();
+
+		/*
+		 * 4) Calculate propensities for reaction that just fired and all
+		 * dependent reactions 5) Setup next fire time. Only the reaction that
+		 * fired draws a new random number; the dependent reactions rescale
+		 * their existing fire times
+		 */
+		reaction.updatePropensity();
+		reaction.generateFireTime();
+		reactionHeap.updateReaction(reaction);
+
+		double oldPropensity; // Dependent reaction's propensity before firing
+		Simulation.Reaction[] reactions = simulation.getReactions();
+		int[] offsets = reactionDependencies.getOffsets();
+		int[] dependents = reactionDependencies.getDependents();
+		int reactionId = reaction.getReactionId();
+		for (int i = offsets[reactionId]; i < offsets[reactionId + 1]; i++) {
+			Simulation.Reaction dependentReaction = reactions[dependents[i]];
+			oldPropensity = dependentReaction.getPropensity();
+			dependentReaction.updatePropensity();
+			dependentReaction.rescaleFireTime(oldPropensity);
+
+			// Notify the heap this reaction's fire time has changed
+			reactionHeap.updateReaction(dependentReaction);
+		}
+	}
+
+	/**
+	 * Writes every reaction's pending fire time
+	 */
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		for (Simulation.Reaction reaction : simulation.getReactions()) {
+			out.writeDouble(reaction.getFireTime());
+		}
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		for (Simulation.Reaction reaction : simulation.getReactions()) {
+			reaction.updatePropensity();
+			reaction.setFireTime(in.readDouble());
+		}
+		reactionHeap.refresh();
+	}
+}
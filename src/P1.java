@@ -1,9 +1,6 @@
-import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * 
@@ -12,115 +9,25 @@ import java.util.List;
  */
 public class P1 {
 	/**
-	 * Simulation variables
+	 * Command line options, given after the three required arguments
 	 */
-	private static int numSpecies;
-	private static int numReactions;
-	private static int numChemicalSpecies;
-	private static int simulationLength;
-	private static int[] speciesToOutput;
-	private static int[] populations;
-	private static String[] reactionDefinitions;
-
-	private static final String INPUT_SEPARATOR = " ";
-	
-	
-	private static final int LINE0_MIN_ARGS = 4;
-	private static final int LINE0_NUM_SPECIES = 0;
-	private static final int LINE0_NUM_REACTIONS = 1;
-	private static final int LINE0_SPECIES_TO_OUTPUT = 2;
-	private static final int LINE0_SIMULATION_LENGTH = 3;
-	private static boolean parseInputFile(String inputFilePath)
-			throws Exception {
-		/**
-		 * Input read the input file
-		 */
-		File inputFile = new File(inputFilePath);
-		FileReader inputFileReader = null;
-		BufferedReader inputBuffer = null;
-		String line = null;
-		inputFileReader = new FileReader(inputFile);
-		inputBuffer = new BufferedReader(inputFileReader);
-
-		/**
-		 * Line 0: Basic Simulation Information Format: N M D SimulationTime
-		 */
-		line = inputBuffer.readLine();
-		if (line == null) {
-			System.err.println("Missing line 0");
-			return false;
-		}
-
-		String[] simulationValues = line.split(INPUT_SEPARATOR);
-		if (simulationValues.length < LINE0_MIN_ARGS) {
-			System.err.println("Line 0 requires 4 values");
-			return false;
-		}
-		numSpecies = Integer.parseInt(simulationValues[LINE0_NUM_SPECIES]);
-		numReactions = Integer.parseInt(simulationValues[LINE0_NUM_REACTIONS]);
-		numChemicalSpecies = Integer.parseInt(simulationValues[LINE0_SPECIES_TO_OUTPUT]);
-		simulationLength = Integer.parseInt(simulationValues[LINE0_SIMULATION_LENGTH]);
-
-		/**
-		 * Line 1: Initial Populations Format: x y z ...
-		 */
-		line = inputBuffer.readLine();
-		if (line == null) {
-			System.err.println("Missing line 1");
-			return false;
-		}
-		String[] populationInput = line.split(INPUT_SEPARATOR);
-
-		// Verify that enough populations are provided
-		if (populationInput.length < numSpecies) {
-			System.err.println("Line 1: Not enough population values provided. Expecting "
-					+ numSpecies);
-			return false;
-		}
-
-		populations = new int[numSpecies];
-		for (int i = 0; i < numSpecies; i++) {
-			populations[i] = Integer.parseInt(populationInput[i]);
-		}
-
-		/**
-		 * Line 2: Indices of species included in output
-		 */
-		line = inputBuffer.readLine();
-		if (line == null) {
-			System.err.println("Missing line 2");
-			return false;
-		}
-
-		String[] chemicalSpeciesInput = line.split(INPUT_SEPARATOR);
-
-		// Verify that enough indices have been provided
-		if (chemicalSpeciesInput.length < numChemicalSpecies) {
-			System.err.println("Line 2: Not enough indices provided");
-			return false;
-		}
-
-		speciesToOutput = new int[numChemicalSpecies];
-		for (int i = 0; i < numChemicalSpecies; i++) {
-			speciesToOutput[i] = Integer.valueOf(chemicalSpeciesInput[i]);
-		}
-
-		/**
-		 * Line 4 to Line (numReactions+4): Reactions
-		 */
-		reactionDefinitions = new String[numReactions];
-		for (int i = 0; i < numReactions; i++) {
-			line = inputBuffer.readLine();
-			if (line == null) {
-				System.err.println("Line " + (4 + i) + ": Missing reaction " + i
-						+ ". Expecting " + (numReactions - i) + " reactions.");
-				return false;
-			}
-			reactionDefinitions[i] = line;
-		}
-
-		return true;
-	}
+	private static final int LINE_ARGS_OPTIONS = 3;
+	private static final String OPTION_THREADS = "-threads";
+	private static final String OPTION_SEED = "-seed";
+	private static final String OPTION_BINARY = "-binary";
+	private static final String OPTION_DELTA = "-delta";
+	private static final String OPTION_SAMPLE = "-sample";
+	private static final String OPTION_QUANTILES = "-quantiles";
+	private static final String OPTION_RNG = "-rng";
+	private static final String OPTION_EXPONENTIAL_BUFFER = "-expbuffer";
+	private static final String OPTION_ENGINE = "-engine";
+	private static final String OPTION_CACHE = "-cache";
+	private static final String OPTION_CHECKPOINT = "-checkpoint";
+	private static final String OPTION_CHECKPOINT_INTERVAL = "-checkpointinterval";
+	private static final String OPTION_RESUME = "-resume";
+	private static final String OPTION_ASYNC = "-async";
+	private static final String OPTION_BATCH = "-batch";
+	private static final double DEFAULT_CHECKPOINT_INTERVAL = 5; // seconds
 
 	/*
 	 * On my honor:
@@ -153,28 +60,235 @@ public class P1 {
 		String inputFilePath = args[1];
 		String outputFilePath = args[2];
 
+		/*
+		 * Optional arguments
+		 */
+		int numThreads = 0;
+		Long seed = null; // use Long object to allow null state
+		String binaryFilePath = null;
+		String deltaFilePath = null;
+		double sampleInterval = 0;
+		boolean keepQuantiles = false;
+		String rngName = RandomStream.XOSHIRO;
+		boolean bufferExponentials = false;
+		String engineName = null; // Depends on -batch when not given
+		boolean useCache = false;
+		String checkpointFilePath = null;
+		double checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		boolean resume = false;
+		String asyncPolicy = null;
+		int batchSize = 0;
+		for (int i = LINE_ARGS_OPTIONS; i < args.length; i++) {
+			if (OPTION_THREADS.equals(args[i]) && i + 1 < args.length) {
+				numThreads = Integer.parseInt(args[++i]);
+			} else if (OPTION_SEED.equals(args[i]) && i + 1 < args.length) {
+				seed = Long.parseLong(args[++i]);
+			} else if (OPTION_BINARY.equals(args[i]) && i + 1 < args.length) {
+				binaryFilePath = args[++i];
+			} else if (OPTION_DELTA.equals(args[i]) && i + 1 < args.length) {
+				deltaFilePath = args[++i];
+			} else if (OPTION_SAMPLE.equals(args[i]) && i + 1 < args.length) {
+				sampleInterval = Double.parseDouble(args[++i]);
+			} else if (OPTION_QUANTILES.equals(args[i])) {
+				keepQuantiles = true;
+			} else if (OPTION_RNG.equals(args[i]) && i + 1 < args.length) {
+				rngName = args[++i];
+			} else if (OPTION_EXPONENTIAL_BUFFER.equals(args[i])) {
+				bufferExponentials = true;
+			} else if (OPTION_ENGINE.equals(args[i]) && i + 1 < args.length) {
+				engineName = args[++i];
+			} else if (OPTION_CACHE.equals(args[i])) {
+				useCache = true;
+			} else if (OPTION_CHECKPOINT.equals(args[i]) && i + 1 < args.length) {
+				checkpointFilePath = args[++i];
+			} else if (OPTION_CHECKPOINT_INTERVAL.equals(args[i])
+					&& i + 1 < args.length) {
+				checkpointInterval = Double.parseDouble(args[++i]);
+			} else if (OPTION_RESUME.equals(args[i])) {
+				resume = true;
+			} else if (OPTION_ASYNC.equals(args[i]) && i + 1 < args.length) {
+				asyncPolicy = args[++i];
+			} else if (OPTION_BATCH.equals(args[i]) && i + 1 < args.length) {
+				batchSize = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println("Unknown argument: " + args[i]);
+				return;
+			}
+		}
+
+		// Checkpoints cover a single simulation writing text output
+		if (checkpointFilePath != null
+				&& (numThreads > 0 || batchSize > 0 || binaryFilePath != null
+						|| deltaFilePath != null || asyncPolicy != null)) {
+			System.err.println("Checkpoints cannot be combined with "
+					+ OPTION_THREADS + ", " + OPTION_BATCH + ", "
+					+ OPTION_BINARY + ", " + OPTION_DELTA + " or "
+					+ OPTION_ASYNC);
+			return;
+		}
+		// Batches always run the direct method
+		if (engineName == null) {
+			engineName = batchSize > 0 ? Simulation.ENGINE_DIRECT
+					: Simulation.ENGINE_NEXT_REACTION;
+		} else if (batchSize > 0
+				&& !Simulation.ENGINE_DIRECT.equals(engineName)) {
+			System.err.println(OPTION_BATCH + " only runs the "
+					+ Simulation.ENGINE_DIRECT + " engine, not " + engineName);
+			return;
+		}
+		// Ensemble workers do not record trajectories
+		if ((numThreads > 0 || batchSize > 0)
+				&& (binaryFilePath != null || deltaFilePath != null
+						|| asyncPolicy != null)) {
+			System.err.println(OPTION_BINARY + ", " + OPTION_DELTA + " and "
+					+ OPTION_ASYNC + " cannot be combined with "
+					+ OPTION_THREADS + " or " + OPTION_BATCH
+					+ ", which record no trajectory");
+			return;
+		}
+		if (binaryFilePath != null && deltaFilePath != null) {
+			System.err.println(OPTION_BINARY + " and " + OPTION_DELTA
+					+ " cannot be combined");
+			return;
+		}
+		if (resume && checkpointFilePath == null) {
+			System.err.println(OPTION_RESUME + " needs " + OPTION_CHECKPOINT);
+			return;
+		}
+		boolean resuming = resume && new File(checkpointFilePath).exists();
+
 		boolean parseSuccess = false;
 
 		try {
-			parseSuccess = parseInputFile(inputFilePath);
+			// Read the model from its binary snapshot when there is one
+			ModelCache cache = useCache ? new ModelCache(inputFilePath) : null;
+			SimulationModel model = cache != null ? cache.load() : null;
+			boolean cached = model != null;
+			if (!cached) {
+				model = ModelLoader.load(inputFilePath,
+						numThreads > 0 ? numThreads : Runtime.getRuntime()
+								.availableProcessors());
+			}
+			parseSuccess = true;
 
 			/*
 			 * Create simulation
 			 */
-			Simulation simulation = new Simulation(simulationLength,
-					populations, reactionDefinitions, speciesToOutput,
-					outputFilePath);
+			Simulation simulation = new Simulation(model, outputFilePath,
+					resuming);
 
-			/*
-			 * Run simulation
-			 */
-			while (numSimulations > 0) {
-				simulation.run();
-				numSimulations--;
-				simulation.resetSimulation(simulationLength, populations,
-						speciesToOutput);
+			// Snapshot the model, with the dependencies the simulation
+			// mapped out, for the next launch
+			if (cache != null && !cached) {
+				try {
+					cache.save(model);
+				} catch (IOException e) {
+					System.err.println("Could not write model cache: "
+							+ e.getMessage());
+				}
+			}
+
+			simulation.setKeepQuantiles(keepQuantiles);
+
+			// Random number generator
+			RandomStream random = RandomStream.create(rngName,
+					seed != null ? seed : System.nanoTime());
+			if (bufferExponentials) {
+				random = new BufferedExponentialStream(random,
+						BufferedExponentialStream.DEFAULT_SIZE);
+			}
+			simulation.setRandom(random);
+
+			// Simulation algorithm
+			simulation.setEngine(engineName);
+
+			// Record the trajectory on a fixed time grid
+			simulation.setSampleInterval(sampleInterval);
+
+			// Send the trajectory to a binary file instead of the text output
+			if (binaryFilePath != null) {
+				simulation.getSimulationOutput().setTrajectorySink(
+						new BinaryTrajectoryWriter(binaryFilePath, model
+								.getSpeciesToOutput()));
+			}
+
+			// Send the trajectory to a delta-encoded compressed file
+			if (deltaFilePath != null) {
+				simulation.getSimulationOutput().setTrajectorySink(
+						new DeltaTrajectoryWriter(deltaFilePath, model
+								.getSpeciesToOutput()));
 			}
-			
+
+			// Write the trajectory on a thread of its own
+			if (asyncPolicy != null) {
+				SimulationOutput output = simulation.getSimulationOutput();
+				output.setTrajectorySink(new AsyncTrajectorySink(output
+						.getTrajectorySink(),
+						model.getSpeciesToOutput().length,
+						AsyncTrajectorySink.DEFAULT_CAPACITY, asyncPolicy));
+			}
+
+			if (numThreads > 0 || batchSize > 0) {
+				/*
+				 * Run the ensemble across worker threads, advancing batches
+				 * of runs together when asked to
+				 */
+				if (seed == null) {
+					seed = System.nanoTime();
+				}
+				EnsembleRunner ensemble = new EnsembleRunner(model, Math.max(1,
+						numThreads), seed);
+				ensemble.setBatchSize(batchSize);
+				ensemble.run(numSimulations, simulation);
+			} else {
+				CheckpointWriter checkpoints = null;
+				if (checkpointFilePath != null) {
+					simulation.setModelHash((cache != null ? cache
+							: new ModelCache(inputFilePath)).getContentHash());
+					checkpoints = new CheckpointWriter(checkpointFilePath,
+							checkpointInterval, simulation
+									.getSimulationOutput());
+					simulation.setCheckpointWriter(checkpoints);
+				}
+
+				/*
+				 * Run simulation, first finishing the run that was
+				 * checkpointed
+				 */
+				int run = 0;
+				if (resuming) {
+					DataInputStream in = CheckpointWriter
+							.open(checkpointFilePath);
+					try {
+						simulation.readCheckpoint(in);
+					} finally {
+						in.close();
+					}
+					run = (int) simulation.getStatistics().getNumRuns();
+					simulation.resumeRun();
+					run++;
+				}
+				while (run < numSimulations) {
+					if (seed != null) {
+						simulation.setSeed(EnsembleRunner.runSeed(seed, run));
+					}
+					simulation.resetSimulation();
+					simulation.run();
+					run++;
+				}
+
+				// Every run is done, so there is nothing left to resume
+				if (checkpoints != null) {
+					try {
+						checkpoints.close();
+					} catch (IOException e) {
+						System.err.println("Could not write checkpoint: "
+								+ e.getMessage());
+					}
+					checkpoints.delete();
+				}
+			}
+
 			simulation.finish();
 
 		} catch (NumberFormatException e) {
@@ -0,0 +1,146 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Approximate quantiles of non-negative integer values in constant memory.
+ * Values are counted in a fixed number of equal-width bins starting at 0. When
+ * a value falls past the last bin the bin width doubles and neighbouring bins
+ * are combined, so the error of a quantile is at most one bin width, which is
+ * 1 (exact) until the values exceed the number of bins. Two sketches can be
+ * merged, ie) when they were filled by different threads.
+ *
+ * @author loganlinn
+ *
+ */
+public class QuantileSketch implements Checkpointable {
+	public static final int DEFAULT_BINS = 2048;
+
+	private final long[] counts;
+	private long width = 1;
+	private long numValues = 0;
+
+	public QuantileSketch() {
+		this(DEFAULT_BINS);
+	}
+
+	/**
+	 * @param numBins
+	 *            number of bins, must be even
+	 */
+	public QuantileSketch(int numBins) {
+		counts = new long[numBins];
+	}
+
+	/**
+	 * Counts a value. Negative values are counted in the first bin.
+	 *
+	 * @param value
+	 */
+	public void add(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		while (value / width >= counts.length) {
+			widen();
+		}
+		counts[(int) (value / width)]++;
+		numValues++;
+	}
+
+	/**
+	 * Adds the counts of another sketch with the same number of bins
+	 *
+	 * @param other
+	 */
+	public void merge(QuantileSketch other) {
+		if (other.counts.length != counts.length) {
+			throw new IllegalArgumentException("Sketch sizes differ");
+		}
+		while (width < other.width) {
+			widen();
+		}
+		// The other sketch's bins fit a whole number of times in ours
+		long ratio = width / other.width;
+		for (int i = 0; i < other.counts.length; i++) {
+			counts[(int) (i / ratio)] += other.counts[i];
+		}
+		numValues += other.numValues;
+	}
+
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeInt(counts.length);
+		out.writeLong(width);
+		out.writeLong(numValues);
+		for (long count : counts) {
+			out.writeLong(count);
+		}
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		if (in.readInt() != counts.length) {
+			throw new IOException("Checkpoint sketch size differs");
+		}
+		width = in.readLong();
+		numValues = in.readLong();
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = in.readLong();
+		}
+	}
+
+	/**
+	 * Doubles the bin width, combining pairs of bins
+	 */
+	private void widen() {
+		int half = counts.length / 2;
+		for (int i = 0; i < half; i++) {
+			counts[i] = counts[2 * i] + counts[2 * i + 1];
+		}
+		for (int i = half; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		width *= 2;
+	}
+
+	/**
+	 * Gets an approximate quantile
+	 *
+	 * @param q
+	 *            between 0 and 1, ie) 0.5 for the median
+	 * @return the middle of the bin holding the quantile, or NaN if nothing
+	 *         was counted
+	 */
+	public double quantile(double q) {
+		if (numValues == 0) {
+			return Double.NaN;
+		}
+		long rank = (long) Math.ceil(q * numValues);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return i * width + (width - 1) / 2.0;
+			}
+		}
+		return (counts.length - 1) * width + (width - 1) / 2.0;
+	}
+
+	/**
+	 * @return the number of values counted
+	 */
+	public long getNumValues() {
+		return numValues;
+	}
+
+	/**
+	 * @return the current bin width
+	 */
+	public long getWidth() {
+		return width;
+	}
+}
@@ -0,0 +1,185 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A stream of random numbers owned by a single simulation. Unlike
+ * Math.random(), streams are not shared or synchronized, so every thread can
+ * have its own, and a stream can be seeded to replay a run exactly.
+ * Subclasses only need to produce 64 random bits at a time, and save and
+ * restore their state for checkpoints.
+ * 
+ * @author loganlinn
+ * 
+ */
+public abstract class RandomStream implements Checkpointable {
+	public static final String XOSHIRO = "xoshiro";
+	public static final String SPLITMIX = "splitmix";
+
+	private static final double POISSON_INVERSION_LIMIT = 30;
+	private static final double[] LOG_FACTORIALS = new double[256];
+	static {
+		for (int k = 1; k < LOG_FACTORIALS.length; k++) {
+			LOG_FACTORIALS[k] = LOG_FACTORIALS[k - 1] + Math.log(k);
+		}
+	}
+
+	/**
+	 * @return 64 random bits
+	 */
+	public abstract long nextLong();
+
+	/**
+	 * Restarts the stream from a seed
+	 * 
+	 * @param seed
+	 */
+	public abstract void setSeed(long seed);
+
+	/**
+	 * Creates a new stream of the same kind that is statistically independent
+	 * of this one. This stream advances as well.
+	 * 
+	 * @return
+	 */
+	public abstract RandomStream split();
+
+	/**
+	 * @return a uniform random number in [0,1)
+	 */
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * @return an exponentially distributed random number with mean 1, ie)
+	 *         -ln(U) for U uniform in (0,1]
+	 */
+	public double nextExponential() {
+		return -Math.log(1.0 - nextDouble());
+	}
+
+	/**
+	 * Draws a Poisson distributed number. Small means are sampled by
+	 * inversion; means of POISSON_INVERSION_LIMIT and up use Hormann's
+	 * transformed rejection (PTRS), which takes a bounded number of tries.
+	 * 
+	 * @param mean
+	 * @return
+	 */
+	public long nextPoisson(double mean) {
+		if (mean <= 0) {
+			return 0;
+		}
+		if (mean < POISSON_INVERSION_LIMIT) {
+			// Walk up the cumulative distribution
+			double p = Math.exp(-mean);
+			double cumulative = p;
+			double u = nextDouble();
+			long k = 0;
+			while (u > cumulative && p > 0) {
+				k++;
+				p *= mean / k;
+				cumulative += p;
+			}
+			return k;
+		}
+
+		double sqrtMean = Math.sqrt(mean);
+		double logMean = Math.log(mean);
+		double b = 0.931 + 2.53 * sqrtMean;
+		double a = -0.059 + 0.02483 * b;
+		double inverseAlpha = 1.1239 + 1.1328 / (b - 3.4);
+		double vr = 0.9277 - 3.6224 / (b - 2);
+		while (true) {
+			double u = nextDouble() - 0.5;
+			double v = nextDouble();
+			double us = 0.5 - Math.abs(u);
+			long k = (long) Math.floor((2 * a / us + b) * u + mean + 0.43);
+			if (us >= 0.07 && v <= vr) {
+				return k;
+			}
+			if (k < 0 || (us < 0.013 && v > us)) {
+				continue;
+			}
+			if (Math.log(v) + Math.log(inverseAlpha) - Math.log(a / (us * us) + b) <= -mean
+					+ k * logMean - logFactorial(k)) {
+				return k;
+			}
+		}
+	}
+
+	/**
+	 * @return ln(k!), exact from a table for small k, by Stirling's series
+	 *         otherwise
+	 */
+	private static double logFactorial(long k) {
+		if (k < LOG_FACTORIALS.length) {
+			return LOG_FACTORIALS[(int) k];
+		}
+		double n = k;
+		double inverse = 1.0 / n;
+		double inverse2 = inverse * inverse;
+		return (n + 0.5) * Math.log(n) - n + 0.5 * Math.log(2 * Math.PI)
+				+ inverse
+				* (1.0 / 12 - inverse2 * (1.0 / 360 - inverse2 / 1260));
+	}
+
+	/**
+	 * Fills part of a buffer with exponential random numbers with mean 1. The
+	 * uniforms are generated in one pass and transformed in a second, so both
+	 * loops stay simple enough for the JIT to unroll.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	public void fillExponentials(double[] buffer, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			buffer[i] = 1.0 - nextDouble();
+		}
+		for (int i = offset; i < end; i++) {
+			buffer[i] = -Math.log(buffer[i]);
+		}
+	}
+
+	/**
+	 * @return what kind of stream this is, ie) its class; a checkpoint only
+	 *         fits a stream with the same description
+	 */
+	public String getDescription() {
+		return getClass().getName();
+	}
+
+	/**
+	 * Creates a stream by name
+	 * 
+	 * @param name
+	 *            XOSHIRO or SPLITMIX
+	 * @param seed
+	 * @return
+	 */
+	public static RandomStream create(String name, long seed) {
+		if (XOSHIRO.equals(name)) {
+			return new Xoshiro256StarStar(seed);
+		} else if (SPLITMIX.equals(name)) {
+			return new SplitMix64Stream(seed);
+		}
+		throw new IllegalArgumentException("Unknown random number generator: "
+				+ name);
+	}
+
+	/**
+	 * The SplitMix64 output function. Turns a sequence of (weakly related)
+	 * 64-bit values into well mixed ones; also used to expand seeds.
+	 * 
+	 * @param z
+	 * @return
+	 */
+	public static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
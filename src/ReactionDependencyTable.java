@@ -1,146 +1,130 @@
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.logging.Logger;
+import java.util.BitSet;
 
 /**
  * This class is used to identify which reactions need to update their
- * propensities after another reaction fires. Using various data structures, the
- * reaction dependencies are mapped out before the simulation starts.
- * 
+ * propensities after another reaction fires. The reaction dependencies are
+ * mapped out before the simulation starts, from the compiled ReactionNetwork.
+ *
+ * A reaction depends on another when one of its reactant species has a
+ * nonzero net change in the other reaction. The dependents of reaction r are
+ * stored in compressed sparse row (CSR) layout, like the network itself: they
+ * are the reaction IDs at [offsets[r], offsets[r + 1]) of the dependents
+ * array. Each dependent is listed once, and a reaction is never listed as its
+ * own dependent; engines update the reaction that fired separately.
+ *
  * @author loganlinn
- * 
+ *
  */
 public class ReactionDependencyTable {
-	private static final Logger log = Logger
-			.getLogger(ReactionDependencyTable.class.getName());
-	private final HashMap<Integer, Simulation.Reaction[]> reactionTable = new HashMap<Integer, Simulation.Reaction[]>();
+	private final int numReactions;
+	private final int[] offsets;
+	private final int[] dependents;
 
 	/**
-	 * 
-	 * Point from a species to a reaction
-	 * 
-	 * @param numReactions
+	 * Maps out the dependencies of a network's reactions. Takes time linear in
+	 * the number of (changed species, dependent reaction) pairs.
+	 *
+	 * @param network
+	 * @param numSpecies
 	 */
-	public ReactionDependencyTable(Simulation.Reaction[] reactions) {
-		map(reactions);
-	}
+	public ReactionDependencyTable(ReactionNetwork network, int numSpecies) {
+		numReactions = network.getNumReactions();
 
-	/**
-	 * Construct the map of reaction dependencies; Determines which reactions
-	 * are dependent on another reaction Mapping occurs at beginning of
-	 * simulation since the set of reactions for a simulation is fixed Doing
-	 * this up front is better than repetitive mapping while simulation is
-	 * running
-	 */
-	private void map(Simulation.Reaction[] reactions) {
 		/*
 		 * Map species to the reactions which the species appears in the
-		 * reactant list
+		 * reactant list, as CSR arrays. Reactant terms are combined per
+		 * species, so every reaction appears at most once per species.
 		 */
-		HashMap<Integer, LinkedList<Simulation.Reaction>> speciesToReactionMap = new HashMap<Integer, LinkedList<Simulation.Reaction>>();
-
-		int speciesId; // Temporary species id used within loop
-		LinkedList<Simulation.Reaction> speciesReactions; // Use linked-list to
-															// collect reactions
-
-		// Loop through all reactions, looking at their reactant species
-		for (Simulation.Reaction reaction : reactions) {
-			for (ReactionTerm reactant : reaction.getReactantTerms()) {
-				speciesId = reactant.getSpeciesId();
-
-				// Check if the species already exists as key
-				if (!speciesToReactionMap.containsKey(speciesId)) {
-
-					// First time getting this species, create the linked list
-					speciesReactions = new LinkedList<Simulation.Reaction>();
-					// Store the reaction list in map
-					speciesToReactionMap.put(speciesId, speciesReactions);
-
-				} else {
-					speciesReactions = speciesToReactionMap.get(speciesId);
-				}
-
-				// Add the reaction to the linked list
-				speciesReactions.add(reaction);
-
+		int[] reactantOffsets = network.getReactantOffsets();
+		int[] reactantSpecies = network.getReactantSpecies();
+		int[] speciesOffsets = new int[numSpecies + 1];
+		for (int species : reactantSpecies) {
+			speciesOffsets[species + 1]++;
+		}
+		for (int s = 0; s < numSpecies; s++) {
+			speciesOffsets[s + 1] += speciesOffsets[s];
+		}
+		int[] speciesReactions = new int[reactantSpecies.length];
+		int[] fill = new int[numSpecies];
+		for (int r = 0; r < numReactions; r++) {
+			for (int i = reactantOffsets[r]; i < reactantOffsets[r + 1]; i++) {
+				int species = reactantSpecies[i];
+				speciesReactions[speciesOffsets[species] + fill[species]++] = r;
 			}
 		}
 
 		/*
-		 * Map reactions to reactions which are dependent
+		 * Map reactions to the reactions reading a species they change. The
+		 * bit set drops duplicates reached through several species, and is
+		 * cleared again from the reactions just added.
 		 */
-		int reactionId; // Temporary reaction id used within loop
-
-		// Define a list to hold all dependent reactions
-		// Linked list under assumption each reaction is not dependent on more
-		// than half of all reactions
-		LinkedList<Simulation.Reaction> dependentReactionsList = new LinkedList<Simulation.Reaction>();
-
-		// Loop through all reactions looking at their product species
-		// Get reaction's product species
-		// For each product species, get reactions
-		// Map all product species' reactions to this reaction
-		// Avoid duplicates via taking intersection of all reaction lists
-
-		List<Integer> dependentReactionsFound = new ArrayList<Integer>(
-				reactions.length);
-
-		for (Simulation.Reaction reaction : reactions) {
-
-			reactionId = reaction.getReactionId();
-
-			// Use linked list to collect all reactions, ignore duplicate
-			// references
-			for (ReactionTerm product : reaction.getProductTerms()) {
-				speciesId = product.getSpeciesId();
-
-				// Get the map from species -> reactions
-				speciesReactions = speciesToReactionMap.get(speciesId);
-
-				// Continue if there are no reactions with this species as a
-				// reactant
-				if (speciesReactions == null) {
-					continue;
-				}
-
-				// All the reactions to the list, but only if we have not
-				// already added it
-				for (Simulation.Reaction dependentReaction : speciesReactions) {
-					if (dependentReaction != reaction
-							&& !dependentReactionsFound
-									.contains(dependentReaction.getReactionId())) {
-						dependentReactionsList.add(dependentReaction);
+		int[] changeOffsets = network.getChangeOffsets();
+		int[] changeSpecies = network.getChangeSpecies();
+		BitSet found = new BitSet(numReactions);
+		offsets = new int[numReactions + 1];
+		int[] tempDependents = new int[Math.max(numReactions, 16)];
+		int count = 0;
+		for (int r = 0; r < numReactions; r++) {
+			offsets[r] = count;
+			for (int i = changeOffsets[r]; i < changeOffsets[r + 1]; i++) {
+				int species = changeSpecies[i];
+				for (int j = speciesOffsets[species]; j < speciesOffsets[species + 1]; j++) {
+					int dependent = speciesReactions[j];
+					if (dependent == r || found.get(dependent)) {
+						continue;
+					}
+					found.set(dependent);
+					if (count == tempDependents.length) {
+						int[] grown = new int[2 * count];
+						System.arraycopy(tempDependents, 0, grown, 0, count);
+						tempDependents = grown;
 					}
+					tempDependents[count++] = dependent;
 				}
-
 			}
+			for (int i = offsets[r]; i < count; i++) {
+				found.clear(tempDependents[i]);
+			}
+		}
+		offsets[numReactions] = count;
 
-			// Store the reduced set
-			Simulation.Reaction[] finalDependentRections = new Simulation.Reaction[dependentReactionsList
-					.size()];
-			finalDependentRections = dependentReactionsList
-					.toArray(finalDependentRections);
-			reactionTable.put(reactionId, finalDependentRections);
+		dependents = new int[count];
+		System.arraycopy(tempDependents, 0, dependents, 0, count);
+	}
 
-			// Clear the list of dependent reactions for the next reaction
-			dependentReactionsFound.clear();
-			dependentReactionsList.clear();
-		}
+	/**
+	 * Wraps dependencies mapped out earlier, ie) read from a ModelCache
+	 *
+	 * @param offsets
+	 *            numReactions + 1 long
+	 * @param dependents
+	 */
+	public ReactionDependencyTable(int[] offsets, int[] dependents) {
+		numReactions = offsets.length - 1;
+		this.offsets = offsets;
+		this.dependents = dependents;
+	}
 
+	/**
+	 * @return the dependent offsets, numReactions + 1 long
+	 */
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * @return the dependent reaction IDs of all reactions, by offset
+	 */
+	public int[] getDependents() {
+		return dependents;
 	}
 
 	/**
-	 * Get all dependent reactions for a given reaction
-	 * 
-	 * @param reaction
-	 * @return
+	 * @param reactionId
+	 * @return the number of reactions depending on a reaction
 	 */
-	public Simulation.Reaction[] getDependentReactions(
-			Simulation.Reaction reaction) {
-		return reactionTable.get(reaction.getReactionId());
+	public int getNumDependents(int reactionId) {
+		return offsets[reactionId + 1] - offsets[reactionId];
 	}
 
 	/**
@@ -150,11 +134,10 @@ public class ReactionDependencyTable {
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		for (Map.Entry<Integer, Simulation.Reaction[]> entry : reactionTable
-				.entrySet()) {
-			sb.append("R" + entry.getKey() + " -> {");
-			for (Simulation.Reaction r : entry.getValue()) {
-				sb.append("R" + r.getReactionId() + ", ");
+		for (int r = 0; r < numReactions; r++) {
+			sb.append("R" + r + " -> {");
+			for (int i = offsets[r]; i < offsets[r + 1]; i++) {
+				sb.append("R" + dependents[i] + ", ");
 			}
 			sb.append("}\n");
 		}
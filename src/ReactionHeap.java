@@ -1,45 +1,121 @@
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.PriorityQueue;
-
 /**
  * This class is used to determine which reaction should fire next in the
  * simulation. Once a reaction fires, it's propensity updates, and a new
  * next-fire time is calculated. An instance of this class will keep a sorted
  * list of reactions based on their next-fire time.
- * 
+ *
+ * The list is an indexed binary min-heap. The heap slot of every reaction is
+ * tracked by reaction ID, so when a reaction's fire time changes it can be
+ * moved to its new place in O(log M) instead of searching the whole heap for
+ * it.
+ *
  * @author loganlinn
- * 
+ *
  */
 public class ReactionHeap {
 	private Simulation simulation;
-	private final PriorityQueue<Simulation.Reaction> queue;
+	private final Simulation.Reaction[] heap;
+	private final int[] positions; // Heap slot of each reaction, by reaction ID
 
 	public ReactionHeap(Simulation simulation) {
 		this.simulation = simulation;
-		queue = new PriorityQueue<Simulation.Reaction>(Arrays.asList(simulation
-				.getReactions()));
+		Simulation.Reaction[] reactions = simulation.getReactions();
+		heap = new Simulation.Reaction[reactions.length];
+		positions = new int[reactions.length];
+		for (int i = 0; i < reactions.length; i++) {
+			heap[i] = reactions[i];
+			positions[reactions[i].getReactionId()] = i;
+		}
+		refresh();
 	}
 
+	/**
+	 * Restores the heap order after a reaction's fire time has changed
+	 *
+	 * @param reaction
+	 */
 	public void updateReaction(Simulation.Reaction reaction) {
-		queue.remove(reaction);
-		queue.add(reaction);
+		int slot = positions[reaction.getReactionId()];
+		if (!siftUp(slot)) {
+			siftDown(slot);
+		}
 	}
 
+	/**
+	 * Gets the reaction that fires next. The reaction stays at the top of the
+	 * heap; call updateReaction() once its fire time has been changed.
+	 *
+	 * @return the reaction, or null if there are no reactions
+	 */
 	public Simulation.Reaction getNextReaction() {
-		Simulation.Reaction reaction = queue.remove();
-		return reaction;
+		return heap.length == 0 ? null : heap[0];
 	}
 
+	/**
+	 * Rebuilds the heap order from scratch. Used when the fire time of every
+	 * reaction may have changed at once.
+	 */
 	public void refresh() {
-		ArrayList<Simulation.Reaction> items = new ArrayList<Simulation.Reaction>(
-				queue.size());
-		while (!queue.isEmpty()) {
-			items.add(queue.remove());
+		for (int slot = heap.length / 2 - 1; slot >= 0; slot--) {
+			siftDown(slot);
+		}
+	}
+
+	/**
+	 * Moves the reaction at slot towards the root until its parent fires
+	 * earlier
+	 *
+	 * @param slot
+	 * @return true if the reaction moved
+	 */
+	private boolean siftUp(int slot) {
+		Simulation.Reaction reaction = heap[slot];
+		double key = reaction.getFireTime();
+		int start = slot;
+		while (slot > 0) {
+			int parent = (slot - 1) >>> 1;
+			if (heap[parent].getFireTime() <= key) {
+				break;
+			}
+			place(heap[parent], slot);
+			slot = parent;
 		}
-		while (!items.isEmpty()) {
-			queue.add(items.get(0));
+		place(reaction, slot);
+		return slot != start;
+	}
+
+	/**
+	 * Moves the reaction at slot towards the leaves until both of its children
+	 * fire later
+	 *
+	 * @param slot
+	 */
+	private void siftDown(int slot) {
+		Simulation.Reaction reaction = heap[slot];
+		double key = reaction.getFireTime();
+		int half = heap.length >>> 1;
+		while (slot < half) {
+			int child = 2 * slot + 1;
+			int right = child + 1;
+			if (right < heap.length
+					&& heap[right].getFireTime() < heap[child].getFireTime()) {
+				child = right;
+			}
+			if (key <= heap[child].getFireTime()) {
+				break;
+			}
+			place(heap[child], slot);
+			slot = child;
 		}
+		place(reaction, slot);
+	}
+
+	/**
+	 * Puts a reaction in a heap slot and records its position
+	 */
+	private void place(Simulation.Reaction reaction, int slot) {
+		heap[slot] = reaction;
+		positions[reaction.getReactionId()] = slot;
 	}
 
 	/**
@@ -48,8 +124,8 @@ public class ReactionHeap {
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		for (Simulation.Reaction reaction : queue) {
-			sb.append("X(t+" + reaction.getTau() + ") -> R"
+		for (Simulation.Reaction reaction : heap) {
+			sb.append("X(" + reaction.getFireTime() + ") -> R"
 					+ reaction.getReactionId() + "\n");
 		}
 		return sb.toString();
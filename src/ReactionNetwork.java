@@ -0,0 +1,446 @@
+import java.util.Arrays;
+
+/**
+ * Compiled form of the simulation's reactions. The parsed Simulation.Reaction
+ * objects are convenient to build and print, but walking their HashMaps boxes
+ * species IDs and allocates iterators on every event. This class flattens all
+ * reactions into primitive arrays in compressed sparse row (CSR) layout: the
+ * terms of reaction r are stored at [offsets[r], offsets[r + 1]) of the term
+ * arrays. Species are stored as 0-based indices into the populations array.
+ *
+ * Reactions are also classified by order when compiled, and propensity()
+ * evaluates each class with its own kernel: zero order, unimolecular,
+ * bimolecular between two species, homodimer (2S) and, for anything else,
+ * the general loop over the reactant terms.
+ *
+ * @author loganlinn
+ *
+ */
+public class ReactionNetwork {
+	/**
+	 * Reaction classes, by the reactants' order
+	 */
+	public static final int ZERO_ORDER = 0; // No reactants
+	public static final int UNIMOLECULAR = 1; // S
+	public static final int BIMOLECULAR = 2; // S1 + S2
+	public static final int HOMODIMER = 3; // 2S
+	public static final int GENERAL = 4; // Any other combination
+
+	private final int numReactions;
+	private final double[] rates;
+
+	// Class of each reaction, with the reactant species its kernel reads
+	private final int[] kinds;
+	private final int[] firstReactants;
+	private final int[] secondReactants;
+
+	// Reactant terms, used for propensities
+	private final int[] reactantOffsets;
+	private final int[] reactantSpecies;
+	private final int[] reactantCoefficients;
+
+	// Product terms, kept so the reactions can be rebuilt from this form
+	private final int[] productOffsets;
+	private final int[] productSpecies;
+	private final int[] productCoefficients;
+
+	// Net stoichiometry (products - reactants), zero entries left out
+	private final int[] changeOffsets;
+	private final int[] changeSpecies;
+	private final int[] changeAmounts;
+
+	/**
+	 * Compiles parsed reactions. Reactions must be indexed by their reaction
+	 * ID.
+	 *
+	 * @param reactions
+	 * @return the compiled network
+	 */
+	public static ReactionNetwork compile(Simulation.Reaction[] reactions) {
+		int numReactions = reactions.length;
+		double[] rates = new double[numReactions];
+		int[] reactantOffsets = new int[numReactions + 1];
+		int[] productOffsets = new int[numReactions + 1];
+
+		// Size the term arrays
+		int numReactantTerms = 0;
+		int numProductTerms = 0;
+		for (Simulation.Reaction reaction : reactions) {
+			numReactantTerms += reaction.getReactants().size();
+			numProductTerms += reaction.getProducts().size();
+		}
+		int[] reactantIds = new int[numReactantTerms];
+		int[] reactantCoefficients = new int[numReactantTerms];
+		int[] productIds = new int[numProductTerms];
+		int[] productCoefficients = new int[numProductTerms];
+
+		int reactantIndex = 0;
+		int productIndex = 0;
+		for (int r = 0; r < numReactions; r++) {
+			Simulation.Reaction reaction = reactions[r];
+			rates[r] = reaction.getReactionRate();
+
+			reactantOffsets[r] = reactantIndex;
+			for (ReactionTerm term : reaction.getReactantTerms()) {
+				reactantIds[reactantIndex] = term.getSpeciesId();
+				reactantCoefficients[reactantIndex] = term.getCoefficient();
+				reactantIndex++;
+			}
+
+			productOffsets[r] = productIndex;
+			for (ReactionTerm term : reaction.getProductTerms()) {
+				productIds[productIndex] = term.getSpeciesId();
+				productCoefficients[productIndex] = term.getCoefficient();
+				productIndex++;
+			}
+		}
+		reactantOffsets[numReactions] = reactantIndex;
+		productOffsets[numReactions] = productIndex;
+
+		return new ReactionNetwork(rates, reactantOffsets, reactantIds,
+				reactantCoefficients, productOffsets, productIds,
+				productCoefficients);
+	}
+
+	/**
+	 * Compiles the reactions of a loaded model straight from its arrays
+	 *
+	 * @param model
+	 */
+	public ReactionNetwork(SimulationModel model) {
+		this(model.getRates(), model.getReactantOffsets(), model
+				.getReactantSpecies(), model.getReactantCoefficients(), model
+				.getProductOffsets(), model.getProductSpecies(), model
+				.getProductCoefficients());
+	}
+
+	/**
+	 * Compiles reactions given as CSR arrays with species by their 1-based
+	 * species ID, as in SimulationModel. A species listed more than once on
+	 * the same side of a reaction is combined into one term, ie) S1 S1
+	 * becomes 2S1. The arrays are not kept.
+	 *
+	 * @param rates
+	 * @param reactantOffsets
+	 * @param reactantIds
+	 * @param reactantCoefficients
+	 * @param productOffsets
+	 * @param productIds
+	 * @param productCoefficients
+	 */
+	public ReactionNetwork(double[] rates, int[] reactantOffsets,
+			int[] reactantIds, int[] reactantCoefficients,
+			int[] productOffsets, int[] productIds, int[] productCoefficients) {
+		numReactions = rates.length;
+		this.rates = rates.clone();
+		kinds = new int[numReactions];
+		firstReactants = new int[numReactions];
+		secondReactants = new int[numReactions];
+
+		// Scratch space indexed by 0-based species index
+		int numSpecies = 0;
+		for (int id : reactantIds) {
+			numSpecies = Math.max(numSpecies, id);
+		}
+		for (int id : productIds) {
+			numSpecies = Math.max(numSpecies, id);
+		}
+		int[] marks = new int[numSpecies]; // Reaction + 1 that saw the species
+		int[] positions = new int[numSpecies];
+
+		this.reactantOffsets = new int[numReactions + 1];
+		int[][] reactants = combineTerms(reactantOffsets, reactantIds,
+				reactantCoefficients, this.reactantOffsets, marks, positions);
+		reactantSpecies = reactants[0];
+		this.reactantCoefficients = reactants[1];
+
+		this.productOffsets = new int[numReactions + 1];
+		int[] productMarks = new int[numSpecies];
+		int[] productPositions = new int[numSpecies];
+		int[][] products = combineTerms(productOffsets, productIds,
+				productCoefficients, this.productOffsets, productMarks,
+				productPositions);
+		productSpecies = products[0];
+		this.productCoefficients = products[1];
+
+		/*
+		 * Net change, products minus reactants, dropping species with no net
+		 * change. The scratch marks are reused with stamps above
+		 * numReactions, which combineTerms() never left behind.
+		 */
+		changeOffsets = new int[numReactions + 1];
+		int[] tempChangeSpecies = new int[reactantSpecies.length
+				+ productSpecies.length];
+		int[] tempChangeAmounts = new int[tempChangeSpecies.length];
+		int changeIndex = 0;
+		for (int r = 0; r < numReactions; r++) {
+			int stamp = numReactions + r + 1;
+			for (int i = this.productOffsets[r]; i < this.productOffsets[r + 1]; i++) {
+				productMarks[productSpecies[i]] = stamp;
+				productPositions[productSpecies[i]] = i;
+			}
+
+			changeOffsets[r] = changeIndex;
+			for (int i = this.reactantOffsets[r]; i < this.reactantOffsets[r + 1]; i++) {
+				int species = reactantSpecies[i];
+				int amount = -this.reactantCoefficients[i];
+				if (productMarks[species] == stamp) {
+					amount += this.productCoefficients[productPositions[species]];
+				}
+				marks[species] = stamp;
+				if (amount != 0) {
+					tempChangeSpecies[changeIndex] = species;
+					tempChangeAmounts[changeIndex] = amount;
+					changeIndex++;
+				}
+			}
+			for (int i = this.productOffsets[r]; i < this.productOffsets[r + 1]; i++) {
+				if (marks[productSpecies[i]] != stamp) {
+					tempChangeSpecies[changeIndex] = productSpecies[i];
+					tempChangeAmounts[changeIndex] = this.productCoefficients[i];
+					changeIndex++;
+				}
+			}
+		}
+		changeOffsets[numReactions] = changeIndex;
+
+		changeSpecies = new int[changeIndex];
+		changeAmounts = new int[changeIndex];
+		System.arraycopy(tempChangeSpecies, 0, changeSpecies, 0, changeIndex);
+		System.arraycopy(tempChangeAmounts, 0, changeAmounts, 0, changeIndex);
+
+		for (int r = 0; r < numReactions; r++) {
+			classify(r);
+		}
+	}
+
+	/**
+	 * Converts one side of the reactions to 0-based species indices,
+	 * combining repeated species of a reaction in the order they first
+	 * appear
+	 *
+	 * @param offsets
+	 *            term offsets of the input
+	 * @param ids
+	 *            1-based species IDs
+	 * @param coefficients
+	 * @param combinedOffsets
+	 *            filled with the term offsets of the output
+	 * @param marks
+	 *            scratch, one per species, all 0
+	 * @param positions
+	 *            scratch, one per species
+	 * @return the output's species indices and coefficients
+	 */
+	private static int[][] combineTerms(int[] offsets, int[] ids,
+			int[] coefficients, int[] combinedOffsets, int[] marks,
+			int[] positions) {
+		int numReactions = combinedOffsets.length - 1;
+		int[] species = new int[ids.length];
+		int[] combined = new int[ids.length];
+		int count = 0;
+		for (int r = 0; r < numReactions; r++) {
+			combinedOffsets[r] = count;
+			for (int i = offsets[r]; i < offsets[r + 1]; i++) {
+				int index = ids[i] - 1;
+				if (marks[index] == r + 1) {
+					combined[positions[index]] += coefficients[i];
+				} else {
+					marks[index] = r + 1;
+					positions[index] = count;
+					species[count] = index;
+					combined[count] = coefficients[i];
+					count++;
+				}
+			}
+		}
+		combinedOffsets[numReactions] = count;
+		if (count == ids.length) {
+			return new int[][] { species, combined };
+		}
+		return new int[][] { Arrays.copyOf(species, count),
+				Arrays.copyOf(combined, count) };
+	}
+
+	/**
+	 * Works out a reaction's class from its reactant terms
+	 */
+	private void classify(int r) {
+		int first = reactantOffsets[r];
+		int numTerms = reactantOffsets[r + 1] - first;
+		firstReactants[r] = numTerms > 0 ? reactantSpecies[first] : -1;
+		secondReactants[r] = numTerms > 1 ? reactantSpecies[first + 1] : -1;
+		if (numTerms == 0) {
+			kinds[r] = ZERO_ORDER;
+		} else if (numTerms == 1 && reactantCoefficients[first] == 1) {
+			kinds[r] = UNIMOLECULAR;
+		} else if (numTerms == 1 && reactantCoefficients[first] == 2) {
+			kinds[r] = HOMODIMER;
+		} else if (numTerms == 2 && reactantCoefficients[first] == 1
+				&& reactantCoefficients[first + 1] == 1) {
+			kinds[r] = BIMOLECULAR;
+		} else {
+			kinds[r] = GENERAL;
+		}
+	}
+
+	/**
+	 * Calculates a reaction's propensity from the given populations. A species
+	 * appearing n times as a reactant contributes x(x-1)...(x-n+1). The
+	 * factors are multiplied in the same order in every kernel, so the result
+	 * does not depend on the reaction's class; a reaction whose reactants have
+	 * run out gets exactly 0.
+	 *
+	 * @param reactionId
+	 * @param populations
+	 * @return
+	 */
+	public double propensity(int reactionId, int[] populations) {
+		switch (kinds[reactionId]) {
+		case ZERO_ORDER:
+			return rates[reactionId];
+		case UNIMOLECULAR:
+			return rates[reactionId] * populations[firstReactants[reactionId]];
+		case BIMOLECULAR:
+			return rates[reactionId] * populations[firstReactants[reactionId]]
+					* populations[secondReactants[reactionId]];
+		case HOMODIMER:
+			int population = populations[firstReactants[reactionId]];
+			// max() keeps an empty species from giving -0
+			return rates[reactionId] * Math.max(population - 1, 0)
+					* population;
+		default:
+			return generalPropensity(reactionId, populations);
+		}
+	}
+
+	/**
+	 * Propensity of a reaction of any order, from its reactant terms
+	 */
+	private double generalPropensity(int reactionId, int[] populations) {
+		double propensity = rates[reactionId];
+		int end = reactantOffsets[reactionId + 1];
+		for (int i = reactantOffsets[reactionId]; i < end; i++) {
+			int population = populations[reactantSpecies[i]];
+			for (int n = reactantCoefficients[i] - 1; n >= 0; n--) {
+				propensity *= population - n;
+			}
+		}
+		return propensity;
+	}
+
+	/**
+	 * Applies one firing of a reaction to the given populations
+	 *
+	 * @param reactionId
+	 * @param populations
+	 */
+	public void fire(int reactionId, int[] populations) {
+		int end = changeOffsets[reactionId + 1];
+		for (int i = changeOffsets[reactionId]; i < end; i++) {
+			populations[changeSpecies[i]] += changeAmounts[i];
+		}
+	}
+
+	/**
+	 * Applies several firings of a reaction to the given populations at once
+	 *
+	 * @param reactionId
+	 * @param populations
+	 * @param times
+	 *            number of firings
+	 */
+	public void fire(int reactionId, int[] populations, long times) {
+		int end = changeOffsets[reactionId + 1];
+		for (int i = changeOffsets[reactionId]; i < end; i++) {
+			populations[changeSpecies[i]] += (int) (changeAmounts[i] * times);
+		}
+	}
+
+	// ------------ Standard getters -------------------
+
+	/**
+	 * @return the number of reactions
+	 */
+	public int getNumReactions() {
+		return numReactions;
+	}
+
+	/**
+	 * @return the class of each reaction, by reaction ID: ZERO_ORDER,
+	 *         UNIMOLECULAR, BIMOLECULAR, HOMODIMER or GENERAL
+	 */
+	public int[] getKinds() {
+		return kinds;
+	}
+
+	/**
+	 * @return the reaction rates, by reaction ID
+	 */
+	public double[] getRates() {
+		return rates;
+	}
+
+	/**
+	 * @return the reactant term offsets, numReactions + 1 long
+	 */
+	public int[] getReactantOffsets() {
+		return reactantOffsets;
+	}
+
+	/**
+	 * @return the reactant species indices
+	 */
+	public int[] getReactantSpecies() {
+		return reactantSpecies;
+	}
+
+	/**
+	 * @return the reactant coefficients
+	 */
+	public int[] getReactantCoefficients() {
+		return reactantCoefficients;
+	}
+
+	/**
+	 * @return the product term offsets, numReactions + 1 long
+	 */
+	public int[] getProductOffsets() {
+		return productOffsets;
+	}
+
+	/**
+	 * @return the product species indices
+	 */
+	public int[] getProductSpecies() {
+		return productSpecies;
+	}
+
+	/**
+	 * @return the product coefficients
+	 */
+	public int[] getProductCoefficients() {
+		return productCoefficients;
+	}
+
+	/**
+	 * @return the net change offsets, numReactions + 1 long
+	 */
+	public int[] getChangeOffsets() {
+		return changeOffsets;
+	}
+
+	/**
+	 * @return the species indices with a net change
+	 */
+	public int[] getChangeSpecies() {
+		return changeSpecies;
+	}
+
+	/**
+	 * @return the net change of each changed species
+	 */
+	public int[] getChangeAmounts() {
+		return changeAmounts;
+	}
+}
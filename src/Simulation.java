@@ -1,46 +1,77 @@
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Stack;
 import java.util.StringTokenizer;
 
 /**
- * Main simulation class
+ * Main simulation class. Holds the state of a run; the algorithm that
+ * advances it is a pluggable SimulationEngine.
+ * 
+ * A run in progress can be checkpointed: the checkpoint holds the clock, the
+ * populations, the fire counts, the random number stream, the engine's
+ * schedule, the statistics of the finished runs and the length of the output
+ * file, so a simulation restored from it continues bit for bit as the
+ * original would have.
  * 
  * @author loganlinn
  * 
  */
-public class Simulation {
+public class Simulation implements Checkpointable {
+	/**
+	 * Engine names, as accepted by setEngine()
+	 */
+	public static final String ENGINE_NEXT_REACTION = "nrm";
+	public static final String ENGINE_DIRECT = "direct";
+	public static final String ENGINE_OPTIMIZED_DIRECT = "odm";
+	public static final String ENGINE_COMPOSITION_REJECTION = "cr";
+	public static final String ENGINE_TAU_LEAPING = "tau";
+	public static final String ENGINE_HYBRID = "hybrid";
+
 	private double currentTime;
 	private int totalTime;
 	private ReactionDependencyTable reactionDependencies;
-	private ReactionHeap reactionHeap;
+	private SimulationEngine engine;
+	private String engineName;
+	private int[] initialPopulations;
 	private int[] populations;
 	private Reaction[] reactions;
+	private ReactionNetwork network;
 	private ArrayList<Integer> speciesToOutput;
+	private int[] watchedSpecies; // 0-based indices of the species to output
+	private boolean recordEveryEvent; // Output on events changing a watched species
 	private SimulationOutput simulationOutput;
+	private RandomStream random = new Xoshiro256StarStar(System.nanoTime());
+	private double sampleInterval = 0; // 0 records every event
+	private long nextSample; // Index of the next grid point to record
 	private int runCount = 0;
 	private int[] speciesAverages;
-	private ArrayList<int[]> speciesPopulations;
+	private EnsembleStatistics statistics;
+	private CheckpointWriter checkpoints; // null if no checkpoints are kept
+	private long modelHash; // Of the model file, to match checkpoints with
 
 	/**
 	 * Simulation Reaction class Uses a HashMap to store the reaction's terms
 	 * with the species ID as the entry key. This allows faster access to
 	 * determine which species are specified within the reaction's reactions or
-	 * products.
+	 * products. Reactions of a loaded model are compiled straight from the
+	 * model's arrays, and only build their HashMaps if asked for them.
 	 * 
 	 * @author loganlinn
 	 * 
 	 */
 	public class Reaction implements Comparable<Reaction> {
-		private final HashMap<Integer, ReactionTerm> reactants = new HashMap<Integer, ReactionTerm>();
-		private final HashMap<Integer, ReactionTerm> products = new HashMap<Integer, ReactionTerm>();
+		private HashMap<Integer, ReactionTerm> reactants; // null until needed
+		private HashMap<Integer, ReactionTerm> products;
 		private double reactionRate;
 		private double propensity;
 		private final int reactionId;
-		private double tau;
+		private double fireTime;
 		private long fireCount = 0;
+		private boolean changesWatchedSpecies = false;
 
 		private static final String REACTANT_PRODUCT_SEPARATOR = "->";
 		private static final String NULL_SEPARATOR = " ";
@@ -57,15 +88,50 @@ public class Simulation {
 				NumberFormatException {
 
 			this.reactionId = id;
+			reactants = new HashMap<Integer, ReactionTerm>();
+			products = new HashMap<Integer, ReactionTerm>();
 
 			// Sanity check that text exists
 			if (reactionText == null || "".equals(reactionText)) {
 				throw new Exception("Empty reaction text");
 			}
 
-			// Parse the reaction text
+			// Parse the reaction text. The simulation schedules the reaction
+			// once the network has been compiled
 			parse(reactionText);
-			updatePropensity();
+		}
+
+		/**
+		 * Reaction constructor, from a reaction of a loaded model. The terms
+		 * are taken from the compiled network when first asked for.
+		 * 
+		 * @param id
+		 * @param model
+		 */
+		public Reaction(int id, SimulationModel model) {
+			this.reactionId = id;
+			reactionRate = model.getRates()[id];
+		}
+
+		/**
+		 * Builds the term HashMaps from the compiled network, for reactions
+		 * of a loaded model
+		 */
+		private void buildTerms() {
+			reactants = new HashMap<Integer, ReactionTerm>();
+			products = new HashMap<Integer, ReactionTerm>();
+			int[] offsets = network.getReactantOffsets();
+			for (int i = offsets[reactionId]; i < offsets[reactionId + 1]; i++) {
+				int speciesId = network.getReactantSpecies()[i] + 1;
+				reactants.put(speciesId, new ReactionTerm(speciesId, network
+						.getReactantCoefficients()[i]));
+			}
+			offsets = network.getProductOffsets();
+			for (int i = offsets[reactionId]; i < offsets[reactionId + 1]; i++) {
+				int speciesId = network.getProductSpecies()[i] + 1;
+				products.put(speciesId, new ReactionTerm(speciesId, network
+						.getProductCoefficients()[i]));
+			}
 		}
 
 		/**
@@ -174,29 +240,11 @@ public class Simulation {
 		 * population should be outputted
 		 */
 		public void fire() {
-			boolean notifyOutput = false;
-			int speciesId; // Temporary variable for species Id
-			// Decrement the reactant species' populations
-			for (ReactionTerm reactionTerm : getReactants().values()) {
-				speciesId = reactionTerm.getSpeciesId();
-				incrementPopulation(speciesId, -reactionTerm.getCoefficient());
-				if (speciesToOutput.contains(Integer.valueOf(speciesId))) {
-					notifyOutput = true;
-				}
-			}
-
-			// Increment the reactant species' populations
-			for (ReactionTerm reactionTerm : getProducts().values()) {
-				speciesId = reactionTerm.getSpeciesId();
-				incrementPopulation(speciesId, reactionTerm.getCoefficient());
-				if (!notifyOutput
-						&& speciesToOutput.contains(Integer.valueOf(speciesId))) {
-					notifyOutput = true;
-				}
-			}
+			// Apply the net stoichiometry to the populations
+			network.fire(reactionId, populations);
 
-			// Notify output helper if we need to
-			if (notifyOutput) {
+			// Notify output helper if a watched species changed
+			if (changesWatchedSpecies && recordEveryEvent) {
 				simulationOutput.populationChanged();
 			}
 
@@ -206,43 +254,52 @@ public class Simulation {
 		}
 
 		/**
-		 * Get's the reaction's propensity methods
+		 * Get's the reaction's propensity methods. Does not reschedule the
+		 * reaction; follow with generateFireTime() or rescaleFireTime()
 		 * 
 		 * @return
 		 */
 		public void updatePropensity() {
-			double propensity = getReactionRate();
-			Stack<Integer> s = new Stack<Integer>();
-			for (ReactionTerm reactantTerm : getReactants().values()) {
-				// Handle when the same species occurs multiple times on one
-				// side of reaction ie) S1+S1->S2
-				int termCoefficient = reactantTerm.getCoefficient();
-				while (termCoefficient-- > 0) {
-					propensity *= getPopulation(reactantTerm.getSpeciesId())
-							- termCoefficient;
-					s.push(getPopulation(reactantTerm.getSpeciesId())
-							- termCoefficient);
-				}
+			setPropensity(network.propensity(reactionId, populations));
+		}
+
+		/**
+		 * Draws a new absolute fire time for this reaction from its current
+		 * propensity. Normally called after calling updatePropensity() on the
+		 * reaction that just fired. A reaction that cannot fire is scheduled
+		 * at infinity.
+		 */
+		public void generateFireTime() {
+			double propensity = getPropensity();
+			if (propensity == 0) {
+				setFireTime(Double.POSITIVE_INFINITY);
+				return;
 			}
-			setPropensity(propensity);
-			generateTau();
+			setFireTime(getCurrentTime() + random.nextExponential() / propensity);
 		}
 
 		/**
-		 * Calculate an offset of time for this reaction to fire again based off
-		 * of current propensity Normally called after calling
-		 * updatePropensity()
+		 * Reschedules a reaction whose propensity changed because another
+		 * reaction fired. The unused part of the old waiting time is reused by
+		 * scaling it with the propensity ratio (Gibson & Bruck's Next Reaction
+		 * Method), so no random number is drawn: t' = t + (a_old/a_new)(t_old -
+		 * t)
 		 * 
-		 * @param propensity
-		 * @return
+		 * @param oldPropensity
+		 *            the propensity before updatePropensity() was called
 		 */
-		public void generateTau() {
+		public void rescaleFireTime(double oldPropensity) {
 			double propensity = getPropensity();
 			if (propensity == 0) {
-				setTau(totalTime + 1); // A big time
+				setFireTime(Double.POSITIVE_INFINITY);
+			} else if (oldPropensity == 0) {
+				// Nothing to reuse, the reaction was not scheduled
+				generateFireTime();
+			} else if (propensity != oldPropensity) {
+				double now = getCurrentTime();
+				setFireTime(now + (oldPropensity / propensity)
+						* (getFireTime() - now));
 			}
-			double r = Math.random(); // Generate a random number
-			setTau(-Math.log(r) / propensity);
 		}
 
 		/**
@@ -275,7 +332,9 @@ public class Simulation {
 		 * @param term
 		 */
 		public void addReactant(ReactionTerm term) {
-
+			if (reactants == null) {
+				buildTerms();
+			}
 			if (reactants.containsKey(term.getSpeciesId())) {
 				// If that species is already in the reaction, combine the
 				// coefficients
@@ -295,6 +354,9 @@ public class Simulation {
 		 * @param term
 		 */
 		public void addProduct(ReactionTerm term) {
+			if (products == null) {
+				buildTerms();
+			}
 			if (products.containsKey(term.getSpeciesId())) {
 				// If that species is already in the reaction, combine the
 				// coefficients
@@ -333,11 +395,11 @@ public class Simulation {
 		 */
 		@Override
 		public int compareTo(Reaction otherReaction) {
-			double tau = getTau();
-			double otherTau = otherReaction.getTau();
-			if (tau == otherTau) {
+			double fireTime = getFireTime();
+			double otherFireTime = otherReaction.getFireTime();
+			if (fireTime == otherFireTime) {
 				return 0;
-			} else if (tau < otherTau) {
+			} else if (fireTime < otherFireTime) {
 				return -1;
 			} else {
 				return 1;
@@ -350,7 +412,7 @@ public class Simulation {
 		 * @return the ReactionTerms of the reaction's reactants
 		 */
 		public Collection<ReactionTerm> getReactantTerms() {
-			return reactants.values();
+			return getReactants().values();
 		}
 
 		/**
@@ -358,7 +420,7 @@ public class Simulation {
 		 * @return the ReactionTerms of the reaction's products
 		 */
 		public Collection<ReactionTerm> getProductTerms() {
-			return products.values();
+			return getProducts().values();
 		}
 
 		/**
@@ -380,6 +442,9 @@ public class Simulation {
 		 * @return the reactants
 		 */
 		public HashMap<Integer, ReactionTerm> getReactants() {
+			if (reactants == null) {
+				buildTerms();
+			}
 			return reactants;
 		}
 
@@ -387,6 +452,9 @@ public class Simulation {
 		 * @return the products
 		 */
 		public HashMap<Integer, ReactionTerm> getProducts() {
+			if (products == null) {
+				buildTerms();
+			}
 			return products;
 		}
 
@@ -413,23 +481,43 @@ public class Simulation {
 		}
 
 		/**
-		 * @return the tau
+		 * @return the absolute simulation time this reaction fires next
 		 */
-		public double getTau() {
-			return tau;
+		public double getFireTime() {
+			return fireTime;
 		}
 
 		/**
-		 * @param tau
-		 *            the tau to set
+		 * @param fireTime
+		 *            the absolute fire time to set
 		 */
-		public void setTau(double tau) {
-			this.tau = tau;
+		public void setFireTime(double fireTime) {
+			this.fireTime = fireTime;
+		}
+
+		/**
+		 * Works out whether firing this reaction changes the population of a
+		 * watched species, so fire() does not have to check every time
+		 * 
+		 * @param watched
+		 *            watched species, by 0-based species index
+		 */
+		private void findWatchedSpecies(BitSet watched) {
+			int[] changeSpecies = network.getChangeSpecies();
+			int end = network.getChangeOffsets()[reactionId + 1];
+			changesWatchedSpecies = false;
+			for (int i = network.getChangeOffsets()[reactionId]; i < end; i++) {
+				if (watched.get(changeSpecies[i])) {
+					changesWatchedSpecies = true;
+				}
+			}
 		}
 
-		public void stepTau(double tau2) {
-			// TODO Auto-generated method stub
-			this.tau = tau - tau2;
+		/**
+		 * @return whether firing this reaction changes a watched species
+		 */
+		public boolean changesWatchedSpecies() {
+			return changesWatchedSpecies;
 		}
 
 		/**
@@ -461,14 +549,85 @@ public class Simulation {
 	/**
 	 * Simulation constructor
 	 * 
+	 * @param outputFilePath
+	 *            file to write trajectories and results to, or null for a
+	 *            simulation that only keeps its state in memory
 	 * @throws Exception
 	 * @throws NumberFormatException
 	 */
 	public Simulation(int simulationLength, int[] populations,
 			String[] reactionDefinitions, int[] speciesToOutput,
 			String outputFilePath) throws NumberFormatException, Exception {
+		setUp(simulationLength, populations, speciesToOutput, outputFilePath,
+				false);
+
+		/*
+		 * Create reactions from reaction definitions
+		 */
+		int numReactions = reactionDefinitions.length;
+		reactions = new Reaction[numReactions];
+		for (int i = 0; i < numReactions; i++) {
+			reactions[i] = new Reaction(i, reactionDefinitions[i]);
+		}
+
+		compile(ReactionNetwork.compile(reactions), null);
+	}
+
+	/**
+	 * Simulation constructor, from a model loaded by ModelLoader
+	 * 
+	 * @param model
+	 * @param outputFilePath
+	 *            file to write trajectories and results to, or null for a
+	 *            simulation that only keeps its state in memory
+	 * @throws IOException
+	 */
+	public Simulation(SimulationModel model, String outputFilePath)
+			throws IOException {
+		this(model, outputFilePath, false);
+	}
+
+	/**
+	 * Simulation constructor, from a model loaded by ModelLoader
+	 * 
+	 * @param model
+	 * @param outputFilePath
+	 *            file to write trajectories and results to, or null for a
+	 *            simulation that only keeps its state in memory
+	 * @param appendOutput
+	 *            whether to keep the output file's contents, ie) to resume
+	 *            from a checkpoint
+	 * @throws IOException
+	 */
+	public Simulation(SimulationModel model, String outputFilePath,
+			boolean appendOutput) throws IOException {
+		setUp(model.getSimulationLength(), model.getPopulations(), model
+				.getSpeciesToOutput(), outputFilePath, appendOutput);
+
+		/*
+		 * Create reactions from the model's reactions
+		 */
+		int numReactions = model.getNumReactions();
+		reactions = new Reaction[numReactions];
+		for (int i = 0; i < numReactions; i++) {
+			reactions[i] = new Reaction(i, model);
+		}
 
-		simulationOutput = new SimulationOutput(this, outputFilePath);
+		// Map the dependencies once per model
+		compile(new ReactionNetwork(model), model.getReactionDependencies());
+		model.setReactionDependencies(reactionDependencies);
+	}
+
+	/**
+	 * Stores the simulation parameters and opens the output
+	 */
+	private void setUp(int simulationLength, int[] populations,
+			int[] speciesToOutput, String outputFilePath, boolean appendOutput)
+			throws IOException {
+		if (outputFilePath != null) {
+			simulationOutput = new SimulationOutput(this, outputFilePath,
+					appendOutput);
+		}
 
 		/*
 		 * Store simulation parameters
@@ -476,100 +635,257 @@ public class Simulation {
 		setTotalTime(simulationLength);
 		setPopulations(populations);
 
-		// Put species to output into ArrayList to make it easier to determine
-		// if a watched species' population changed
+		// Keep the species to output as a list of IDs and as an array of
+		// population indices
 		ArrayList<Integer> speciesToOutputList = new ArrayList<Integer>(
 				speciesToOutput.length);
 		for (int species : speciesToOutput) {
 			speciesToOutputList.add(species);
 		}
 		setSpeciesToOutput(speciesToOutputList);
-		speciesPopulations = new ArrayList<int[]>();
+		watchedSpecies = new int[speciesToOutput.length];
+		for (int i = 0; i < speciesToOutput.length; i++) {
+			watchedSpecies[i] = speciesToOutput[i] - 1;
+		}
+		recordEveryEvent = simulationOutput != null;
+		statistics = new EnsembleStatistics(speciesToOutput.length, false);
+	}
+
+	/**
+	 * Takes the compiled form of the created reactions, maps their
+	 * dependencies and schedules them with the default engine
+	 * 
+	 * @param network
+	 *            the reactions, compiled
+	 * @param dependencies
+	 *            dependencies mapped out before, or null to map them
+	 */
+	private void compile(ReactionNetwork network,
+			ReactionDependencyTable dependencies) {
+		BitSet watched = new BitSet();
+		for (int species : watchedSpecies) {
+			watched.set(species);
+		}
 
 		/*
-		 * Create reactions from reaction definitions
+		 * Keep the flat form used by the main loop
 		 */
-		int numReactions = reactionDefinitions.length;
-		reactions = new Reaction[numReactions];
-		for (int i = 0; i < numReactions; i++) {
-			reactions[i] = new Reaction(i, reactionDefinitions[i]);
+		this.network = network;
+		for (Reaction reaction : reactions) {
+			reaction.findWatchedSpecies(watched);
+			reaction.updatePropensity();
 		}
 
 		/*
 		 * Create reaction dependency table
 		 */
-		reactionDependencies = new ReactionDependencyTable(reactions);
+		reactionDependencies = dependencies != null ? dependencies
+				: new ReactionDependencyTable(network, populations.length);
 
 		/*
-		 * Create heap
+		 * Create the default engine and schedule the reactions
 		 */
-		reactionHeap = new ReactionHeap(this);
+		setEngine(ENGINE_NEXT_REACTION);
 	}
 
 	/**
-	 * Stores populations for the species to output
+	 * Runs the simulation, then writes and stores the run's results
 	 */
-	public void storeSpeciesPopulations() {
-		int numSpecies = speciesToOutput.size();
-		int[] populations = new int[numSpecies];
-		for (int i = 0; i < numSpecies; i++) {
-			populations[i] = getPopulation(speciesToOutput.get(i));
+	public void run() {
+		simulate();
+		addRun(getPopulationsToOutput(), getReactionFireCounts());
+	}
+
+	/**
+	 * Stores the results of a finished run: writes the reaction fire counts
+	 * and adds the watched species' final populations to the ensemble
+	 * statistics
+	 * 
+	 * @param watchedPopulations
+	 *            final populations of the species to output
+	 * @param fireCounts
+	 */
+	public void addRun(int[] watchedPopulations, long[] fireCounts) {
+		if (simulationOutput != null) {
+			simulationOutput.simulationComplete(fireCounts);
 		}
-		speciesPopulations.add(populations);
+		statistics.add(watchedPopulations);
 	}
 
 	/**
-	 * Runs the simulation
+	 * Stores the results of runs simulated elsewhere, ie) by an ensemble
+	 * worker: writes each run's fire counts and merges the runs' statistics
+	 * 
+	 * @param fireCounts
+	 *            fire counts of each run, in run order
+	 * @param runStatistics
+	 *            statistics of the same runs
 	 */
-	public void run() {
+	public void addRuns(long[][] fireCounts, EnsembleStatistics runStatistics) {
+		if (simulationOutput != null) {
+			for (long[] runFireCounts : fireCounts) {
+				simulationOutput.simulationComplete(runFireCounts);
+			}
+		}
+		statistics.merge(runStatistics);
+	}
 
-		/*
-		 * Define simulation loop variables
-		 */
-		Reaction reaction; // Current firing reaction
-		Reaction[] dependentReactions; // Reactions dependent current reaction
-		int reactionId; // Temporary holder for current reaction's ID
+	/**
+	 * Runs the main simulation loop until the simulation length is reached.
+	 * Results are left in the simulation's state.
+	 */
+	public void simulate() {
+		nextSample = 0;
+		advance();
+	}
+
+	/**
+	 * Finishes the run restored by readCheckpoint(), then writes and stores
+	 * its results
+	 */
+	public void resumeRun() {
+		advance();
+		addRun(getPopulationsToOutput(), getReactionFireCounts());
+	}
+
+	/**
+	 * Runs the main simulation loop from the current state until the
+	 * simulation length is reached
+	 */
+	private void advance() {
+		double nextEventTime;
+		boolean sampling = sampleInterval > 0 && simulationOutput != null;
 
 		/*
 		 * Run the main simulation loop
 		 */
-		while (totalTime > currentTime) {
-			/*
-			 * 1) Pick next reaction to fire
-			 */
+		while ((nextEventTime = engine.nextEventTime()) <= totalTime) {
+			// Record grid points passed before the next event
+			if (sampling) {
+				recordSamples(nextEventTime, false);
+			}
 
-			reaction = reactionHeap.getNextReaction();
-			reactionId = reaction.getReactionId();
+			engine.fireNext();
 
-			/*
-			 * 2) Update simulation clock from reaction time
-			 */
-			stepTime(reaction.getTau());
+			// Between events nothing is planned, so the state is complete
+			if (checkpoints != null && checkpoints.isDue()) {
+				try {
+					checkpoints.write(this);
+				} catch (IOException e) {
+					System.err.println("Could not write checkpoint: "
+							+ e.getMessage());
+				}
+			}
+		}
 
-			/*
-			 * 3) Update populations
-			 */
-			reaction.fire();
+		// Record the rest of the grid; the state no longer changes
+		if (sampling) {
+			recordSamples(totalTime, true);
+		}
+	}
 
-			/*
-			 * 4) Calculate propensities for reaction that just fired and all
-			 * dependent reactions 5) Setup next fire time
-			 */
-			reaction.updatePropensity();
-			dependentReactions = reactionDependencies
-					.getDependentReactions(reaction);
+	/**
+	 * Writes the state of the run in progress. Call between events.
+	 */
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeInt(populations.length);
+		out.writeInt(reactions.length);
+		out.writeLong(modelHash);
+		out.writeUTF(engineName);
+		out.writeUTF(random.getDescription());
+		out.writeDouble(sampleInterval);
+		out.writeDouble(currentTime);
+		out.writeLong(nextSample);
+		for (int population : populations) {
+			out.writeInt(population);
+		}
+		for (Reaction reaction : reactions) {
+			out.writeLong(reaction.getFireCount());
+		}
+		random.writeCheckpoint(out);
+		engine.writeCheckpoint(out);
+		statistics.writeCheckpoint(out);
+		out.writeBoolean(simulationOutput != null);
+		if (simulationOutput != null) {
+			simulationOutput.writeCheckpoint(out);
+		}
+	}
 
-			reactionHeap.updateReaction(reaction);
+	/**
+	 * Restores a run in progress; continue it with resumeRun(). The model
+	 * hash, engine, random number stream, sample interval, quantile setting
+	 * and output must be set up as they were when the checkpoint was written.
+	 */
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		if (in.readInt() != populations.length
+				|| in.readInt() != reactions.length
+				|| in.readLong() != modelHash) {
+			throw new IOException("Checkpoint is of a different model");
+		}
+		String checkpointEngine = in.readUTF();
+		if (!checkpointEngine.equals(engineName)) {
+			throw new IOException("Checkpoint was written by the "
+					+ checkpointEngine + " engine");
+		}
+		String checkpointRandom = in.readUTF();
+		if (!checkpointRandom.equals(random.getDescription())) {
+			throw new IOException("Checkpoint uses the random number stream "
+					+ checkpointRandom + ", not " + random.getDescription());
+		}
+		double checkpointSampleInterval = in.readDouble();
+		if (checkpointSampleInterval != sampleInterval) {
+			throw new IOException("Checkpoint was written with a sample "
+					+ "interval of " + checkpointSampleInterval + ", not "
+					+ sampleInterval);
+		}
+		currentTime = in.readDouble();
+		nextSample = in.readLong();
+		for (int i = 0; i < populations.length; i++) {
+			populations[i] = in.readInt();
+		}
+		for (Reaction reaction : reactions) {
+			reaction.setFireCount(in.readLong());
+		}
+		random.readCheckpoint(in);
+		engine.readCheckpoint(in);
+		statistics.readCheckpoint(in);
+		if (in.readBoolean() != (simulationOutput != null)) {
+			throw new IOException("Checkpoint output does not match");
+		}
+		if (simulationOutput != null) {
+			simulationOutput.readCheckpoint(in);
+		}
+	}
 
-			for (Reaction dependentReaction : dependentReactions) {
-				dependentReaction.updatePropensity();
+	/**
+	 * Records the current populations at every grid point before the given
+	 * time. The populations are carried forward from the last event, since
+	 * they only change when a reaction fires.
+	 * 
+	 * @param time
+	 * @param inclusive
+	 *            whether to also record a grid point falling exactly on time
+	 */
+	private void recordSamples(double time, boolean inclusive) {
+		double sampleTime = nextSample * sampleInterval;
+		while (sampleTime < time || (inclusive && sampleTime == time)) {
+			simulationOutput.populationChanged(sampleTime);
+			nextSample++;
+			sampleTime = nextSample * sampleInterval;
+		}
+	}
 
-				// Notify the heap this reaction's propensity/tau has changed
-				reactionHeap.updateReaction(dependentReaction);
-			}
+	/**
+	 * Records the current populations if every event is being recorded. Used
+	 * by engines that change the populations without Reaction.fire(), after
+	 * an event that changed a watched species.
+	 */
+	public void populationChanged() {
+		if (recordEveryEvent) {
+			simulationOutput.populationChanged();
 		}
-		simulationOutput.simulationComplete();
-		storeSpeciesPopulations();
 	}
 
 	/**
@@ -578,14 +894,23 @@ public class Simulation {
 	 * @return
 	 */
 	public int[] getPopulationsToOutput() {
-		int numSpecies = speciesToOutput.size();
-		int[] populations = new int[numSpecies];
-		for (int i = 0; i < numSpecies; i++) {
-			populations[i] = getPopulation(speciesToOutput.get(i));
-		}
+		int[] populations = new int[watchedSpecies.length];
+		getPopulationsToOutput(populations);
 		return populations;
 	}
 
+	/**
+	 * Copies the current populations of the watched species into an array
+	 * 
+	 * @param populations
+	 *            array as long as the species to output
+	 */
+	public void getPopulationsToOutput(int[] populations) {
+		for (int i = 0; i < watchedSpecies.length; i++) {
+			populations[i] = this.populations[watchedSpecies[i]];
+		}
+	}
+
 	/**
 	 * 
 	 * @return
@@ -600,66 +925,53 @@ public class Simulation {
 	}
 
 	public void finish() {
-		/*
-		 * Calculate mean
-		 */
-		int numSpecies = speciesToOutput.size();
-		int numRuns = speciesPopulations.size();
-		System.out.println("Finished "+numRuns+" simulations");
-		Integer[] means = new Integer[numSpecies];
-		for (int i = 0; i < numSpecies; i++) {
-			means[i] = 0;
-		}
-		for (int runIndex = 0; runIndex < speciesPopulations.size(); runIndex++) {
-			int[] populations = speciesPopulations.get(runIndex);
-			for (int speciesIndex = 0; speciesIndex < numSpecies; speciesIndex++) {
-				means[speciesIndex] = means[speciesIndex]
-						+ populations[speciesIndex];
-			}
-		}
-
-		for (int speciesIndex = 0; speciesIndex < means.length; speciesIndex++) {
-			means[speciesIndex] = means[speciesIndex] / numRuns;
-		}
+		int numSpecies = statistics.getNumSpecies();
+		System.out.println("Finished " + statistics.getNumRuns()
+				+ " simulations");
 
 		// Output means
 		StringBuffer meanStr = new StringBuffer();
-		for(int i = 0; i < means.length; i++) {
-			Integer meanValue = means[i];
-			meanStr.append("mean(x"+(i+1)+") = "+meanValue.toString() + SimulationOutput.DELIMITER);
+		for (int i = 0; i < numSpecies; i++) {
+			meanStr.append("mean(x" + (i + 1) + ") = "
+					+ statistics.getMean(i) + SimulationOutput.DELIMITER);
 		}
 		System.out.println(meanStr.toString());
 		simulationOutput.writeln(meanStr.toString());
 
-		/*
-		 * Calculate variance
-		 */
-		Integer[] variances = new Integer[numSpecies];
-		for (int i = 0; i < numSpecies; i++) {
-			variances[i] = 0;
-		}
-		for (int runIndex = 0; runIndex < speciesPopulations.size(); runIndex++) {
-			int[] populations = speciesPopulations.get(runIndex);
-			for (int speciesIndex = 0; speciesIndex < numSpecies; speciesIndex++) {
-				variances[speciesIndex] = (int) (variances[speciesIndex] + Math
-						.pow(populations[speciesIndex] - means[speciesIndex], 2));
-			}
-		}
-
-		for (int speciesIndex = 0; speciesIndex < numSpecies; speciesIndex++) {
-			variances[speciesIndex] = variances[speciesIndex] / numRuns;
-		}
 		// Output variance
 		StringBuffer varianceStr = new StringBuffer();
-		for (int i = 0; i < variances.length; i++){
-			Integer variance = variances[i]; 
-			varianceStr.append("var"+i+" = "+
-							variance.toString() + SimulationOutput.DELIMITER);
+		for (int i = 0; i < numSpecies; i++) {
+			varianceStr.append("var" + i + " = " + statistics.getVariance(i)
+					+ SimulationOutput.DELIMITER);
 		}
-
 		System.out.println(varianceStr.toString());
 		simulationOutput.writeln(varianceStr.toString());
 
+		// Output range
+		StringBuffer rangeStr = new StringBuffer();
+		for (int i = 0; i < numSpecies; i++) {
+			rangeStr.append("range(x" + (i + 1) + ") = ["
+					+ statistics.getMinimum(i) + ", "
+					+ statistics.getMaximum(i) + "]"
+					+ SimulationOutput.DELIMITER);
+		}
+		System.out.println(rangeStr.toString());
+		simulationOutput.writeln(rangeStr.toString());
+
+		// Output quantiles
+		if (statistics.hasQuantiles()) {
+			StringBuffer quantileStr = new StringBuffer();
+			for (int i = 0; i < numSpecies; i++) {
+				quantileStr.append("quantiles(x" + (i + 1) + ") = ["
+						+ statistics.getQuantile(i, 0.05) + ", "
+						+ statistics.getQuantile(i, 0.5) + ", "
+						+ statistics.getQuantile(i, 0.95) + "]"
+						+ SimulationOutput.DELIMITER);
+			}
+			System.out.println(quantileStr.toString());
+			simulationOutput.writeln(quantileStr.toString());
+		}
+
 		try {
 			simulationOutput.closeOutput();
 		} catch (IOException e) {
@@ -678,38 +990,38 @@ public class Simulation {
 	}
 
 	/**
-	 * Resets the simulation
-	 * 
-	 * @param simulationLength
-	 * @param populations
-	 * @param speciesToOutput
+	 * Resets the simulation to its initial state. The working populations
+	 * are restored from the initial population snapshot with a bulk copy.
+	 * Call before every run, after seeding.
 	 */
-	public void resetSimulation(int simulationLength, int[] populations,
-			int[] speciesToOutput) {
+	public void resetSimulation() {
 		setCurrentTime(0);
-		setTotalTime(simulationLength);
-		setPopulations(populations);
-
-		// Create heap
-		reactionHeap = new ReactionHeap(this);
+		System.arraycopy(initialPopulations, 0, populations, 0,
+				populations.length);
 
 		// Reset reactions (fire count)
 		for (Simulation.Reaction reaction : reactions) {
 			reaction.reset();
 		}
 
+		// Schedule the reactions from time 0
+		engine.reset();
 	}
 
 	/**
-	 * Steps simulations current to by an tau value
+	 * Resets the simulation with new parameters. The populations are copied
+	 * into the initial population snapshot; the caller's array is never
+	 * modified.
 	 * 
-	 * @param tau
+	 * @param simulationLength
+	 * @param populations
+	 * @param speciesToOutput
 	 */
-	public void stepTime(double tau) {
-		setCurrentTime(getCurrentTime() + tau);
-		for (Simulation.Reaction reaction : reactions) {
-			reaction.stepTau(tau);
-		}
+	public void resetSimulation(int simulationLength, int[] populations,
+			int[] speciesToOutput) {
+		setTotalTime(simulationLength);
+		setPopulations(populations);
+		resetSimulation();
 	}
 
 	/**
@@ -723,7 +1035,7 @@ public class Simulation {
 	 * @param currentTime
 	 *            the currentTime to set
 	 */
-	private void setCurrentTime(double currentTime) {
+	public void setCurrentTime(double currentTime) {
 		this.currentTime = currentTime;
 	}
 
@@ -754,28 +1066,29 @@ public class Simulation {
 	}
 
 	/**
-	 * Sets a specific species' population
-	 * 
-	 * @param speciesId
-	 * @param population
+	 * @return the populations
 	 */
-	private void incrementPopulation(int speciesId, int step) {
-		populations[speciesId - 1] = populations[speciesId - 1] + step;
+	public int[] getPopulations() {
+		return populations;
 	}
 
 	/**
-	 * @return the populations
+	 * @return a copy of the initial populations
 	 */
-	public int[] getPopulations() {
-		return populations;
+	public int[] getInitialPopulations() {
+		return initialPopulations.clone();
 	}
 
 	/**
+	 * Sets the initial populations. Keeps a snapshot of the given array and a
+	 * separate working copy for the runs to modify.
+	 * 
 	 * @param populations
-	 *            the populations to set
+	 *            the initial populations to set
 	 */
 	private void setPopulations(int[] populations) {
-		this.populations = populations;
+		this.initialPopulations = populations.clone();
+		this.populations = populations.clone();
 	}
 
 	/**
@@ -793,6 +1106,152 @@ public class Simulation {
 		this.reactions = reactions;
 	}
 
+	/**
+	 * @return the output helper, or null if the simulation has no output
+	 */
+	public SimulationOutput getSimulationOutput() {
+		return simulationOutput;
+	}
+
+	/**
+	 * Selects the algorithm that advances the simulation and schedules the
+	 * reactions with it
+	 * 
+	 * @param engineName
+	 *            ENGINE_NEXT_REACTION, ENGINE_DIRECT, ENGINE_OPTIMIZED_DIRECT,
+	 *            ENGINE_COMPOSITION_REJECTION, ENGINE_TAU_LEAPING or
+	 *            ENGINE_HYBRID
+	 */
+	public void setEngine(String engineName) {
+		if (ENGINE_NEXT_REACTION.equals(engineName)) {
+			engine = new NextReactionEngine(this);
+		} else if (ENGINE_DIRECT.equals(engineName)) {
+			engine = new DirectEngine(this);
+		} else if (ENGINE_OPTIMIZED_DIRECT.equals(engineName)) {
+			engine = new OptimizedDirectEngine(this);
+		} else if (ENGINE_COMPOSITION_REJECTION.equals(engineName)) {
+			engine = new CompositionRejectionEngine(this);
+		} else if (ENGINE_TAU_LEAPING.equals(engineName)) {
+			engine = new TauLeapingEngine(this);
+		} else if (ENGINE_HYBRID.equals(engineName)) {
+			engine = new HybridEngine(this);
+		} else {
+			throw new IllegalArgumentException("Unknown engine: " + engineName);
+		}
+		this.engineName = engineName;
+		engine.reset();
+	}
+
+	/**
+	 * @return the name of the engine, as given to setEngine()
+	 */
+	public String getEngineName() {
+		return engineName;
+	}
+
+	/**
+	 * @return the engine advancing the simulation
+	 */
+	public SimulationEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return the reaction dependency table
+	 */
+	public ReactionDependencyTable getReactionDependencies() {
+		return reactionDependencies;
+	}
+
+	/**
+	 * @return the compiled reaction network
+	 */
+	public ReactionNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * @return the interval between recorded trajectory points, or 0 if every
+	 *         event is recorded
+	 */
+	public double getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * Records the trajectory on a fixed time grid instead of on every event
+	 * that changes a watched species. Output then grows with
+	 * simulationLength / sampleInterval rather than with the event rate.
+	 * 
+	 * @param sampleInterval
+	 *            time between recorded points, or 0 to record every event
+	 */
+	public void setSampleInterval(double sampleInterval) {
+		this.sampleInterval = sampleInterval;
+		recordEveryEvent = simulationOutput != null && sampleInterval <= 0;
+	}
+
+	/**
+	 * @return the statistics of the runs completed so far
+	 */
+	public EnsembleStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Whether to keep quantile sketches (5%, median, 95%) of the final
+	 * populations. Discards the statistics gathered so far, so call before
+	 * running.
+	 * 
+	 * @param keepQuantiles
+	 */
+	public void setKeepQuantiles(boolean keepQuantiles) {
+		statistics = new EnsembleStatistics(statistics.getNumSpecies(),
+				keepQuantiles);
+	}
+
+	/**
+	 * Seeds the simulation's random number generator
+	 * 
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+
+	/**
+	 * @return the simulation's random number stream
+	 */
+	public RandomStream getRandom() {
+		return random;
+	}
+
+	/**
+	 * @param random
+	 *            the random number stream to draw from; must not be shared
+	 *            with another simulation
+	 */
+	public void setRandom(RandomStream random) {
+		this.random = random;
+	}
+
+	/**
+	 * @param checkpoints
+	 *            writer to checkpoint runs in progress with, or null
+	 */
+	public void setCheckpointWriter(CheckpointWriter checkpoints) {
+		this.checkpoints = checkpoints;
+	}
+
+	/**
+	 * @param modelHash
+	 *            hash of the model file's contents, ie) from ModelCache;
+	 *            checkpoints are only read back with the same hash
+	 */
+	public void setModelHash(long modelHash) {
+		this.modelHash = modelHash;
+	}
+
 	/**
 	 * @return the speciesToOutput
 	 */
@@ -0,0 +1,37 @@
+/**
+ * An algorithm that advances a simulation one event at a time. Engines share
+ * the simulation's parsed reactions, compiled network and dependency table;
+ * they only differ in how the next event is picked. The simulation's main
+ * loop asks for the time of the next event, records output up to it, and then
+ * has the engine fire it.
+ * 
+ * Engines are checkpointed between events: after fireNext() and before the
+ * next nextEventTime(), so no planned event is ever saved. The simulation
+ * restores the populations before the engine reads its checkpoint, so
+ * propensities can be recomputed rather than saved.
+ * 
+ * @author loganlinn
+ * 
+ */
+public interface SimulationEngine extends Checkpointable {
+
+	/**
+	 * Recomputes every propensity and schedule from the simulation's current
+	 * populations. Called at the start of every run.
+	 */
+	public void reset();
+
+	/**
+	 * Gets the absolute time of the next event. Calling this again before
+	 * fireNext() returns the same time.
+	 * 
+	 * @return the time, or Double.POSITIVE_INFINITY if no reaction can fire
+	 */
+	public double nextEventTime();
+
+	/**
+	 * Advances the simulation clock to nextEventTime() and fires the event,
+	 * updating the propensities it affects
+	 */
+	public void fireNext();
+}
@@ -0,0 +1,166 @@
+/**
+ * Everything read from a model (input) file: the simulation length, initial
+ * populations, species to output and the reactions. Reactions are kept as
+ * flat arrays in compressed sparse row (CSR) layout rather than as text: the
+ * reactant terms of reaction r are stored at [reactantOffsets[r],
+ * reactantOffsets[r + 1]) of the reactant arrays, and likewise for products.
+ * Species are stored by their 1-based species ID, as written in the file.
+ *
+ * @author loganlinn
+ *
+ */
+public class SimulationModel {
+	private final int simulationLength;
+	private final int[] populations;
+	private final int[] speciesToOutput;
+
+	private final double[] rates;
+	private final int[] reactantOffsets;
+	private final int[] reactantSpecies;
+	private final int[] reactantCoefficients;
+	private final int[] productOffsets;
+	private final int[] productSpecies;
+	private final int[] productCoefficients;
+
+	// Mapped out once and shared by every simulation of the model
+	private ReactionDependencyTable reactionDependencies;
+
+	/**
+	 * SimulationModel constructor. The arrays are kept, not copied.
+	 *
+	 * @param simulationLength
+	 * @param populations
+	 *            initial populations, by 0-based species index
+	 * @param speciesToOutput
+	 *            species IDs to output
+	 * @param rates
+	 *            reaction rates, by reaction ID
+	 * @param reactantOffsets
+	 *            numReactions + 1 long
+	 * @param reactantSpecies
+	 * @param reactantCoefficients
+	 * @param productOffsets
+	 *            numReactions + 1 long
+	 * @param productSpecies
+	 * @param productCoefficients
+	 */
+	public SimulationModel(int simulationLength, int[] populations,
+			int[] speciesToOutput, double[] rates, int[] reactantOffsets,
+			int[] reactantSpecies, int[] reactantCoefficients,
+			int[] productOffsets, int[] productSpecies,
+			int[] productCoefficients) {
+		this.simulationLength = simulationLength;
+		this.populations = populations;
+		this.speciesToOutput = speciesToOutput;
+		this.rates = rates;
+		this.reactantOffsets = reactantOffsets;
+		this.reactantSpecies = reactantSpecies;
+		this.reactantCoefficients = reactantCoefficients;
+		this.productOffsets = productOffsets;
+		this.productSpecies = productSpecies;
+		this.productCoefficients = productCoefficients;
+	}
+
+	// ------------ Standard getters -------------------
+
+	/**
+	 * @return the simulation length
+	 */
+	public int getSimulationLength() {
+		return simulationLength;
+	}
+
+	/**
+	 * @return the number of species
+	 */
+	public int getNumSpecies() {
+		return populations.length;
+	}
+
+	/**
+	 * @return the number of reactions
+	 */
+	public int getNumReactions() {
+		return rates.length;
+	}
+
+	/**
+	 * @return the initial populations, by 0-based species index
+	 */
+	public int[] getPopulations() {
+		return populations;
+	}
+
+	/**
+	 * @return the species IDs to output
+	 */
+	public int[] getSpeciesToOutput() {
+		return speciesToOutput;
+	}
+
+	/**
+	 * @return the reaction rates, by reaction ID
+	 */
+	public double[] getRates() {
+		return rates;
+	}
+
+	/**
+	 * @return the reactant term offsets, numReactions + 1 long
+	 */
+	public int[] getReactantOffsets() {
+		return reactantOffsets;
+	}
+
+	/**
+	 * @return the reactant species IDs
+	 */
+	public int[] getReactantSpecies() {
+		return reactantSpecies;
+	}
+
+	/**
+	 * @return the reactant coefficients
+	 */
+	public int[] getReactantCoefficients() {
+		return reactantCoefficients;
+	}
+
+	/**
+	 * @return the product term offsets, numReactions + 1 long
+	 */
+	public int[] getProductOffsets() {
+		return productOffsets;
+	}
+
+	/**
+	 * @return the product species IDs
+	 */
+	public int[] getProductSpecies() {
+		return productSpecies;
+	}
+
+	/**
+	 * @return the product coefficients
+	 */
+	public int[] getProductCoefficients() {
+		return productCoefficients;
+	}
+
+	/**
+	 * @return the reaction dependency table, or null if it has not been
+	 *         mapped out yet
+	 */
+	public ReactionDependencyTable getReactionDependencies() {
+		return reactionDependencies;
+	}
+
+	/**
+	 * @param reactionDependencies
+	 *            the reaction dependency table to set
+	 */
+	public void setReactionDependencies(
+			ReactionDependencyTable reactionDependencies) {
+		this.reactionDependencies = reactionDependencies;
+	}
+}
@@ -1,114 +1,342 @@
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 
 /**
- * An output helper class for the simulation
+ * An output helper class for the simulation. Numbers are formatted straight
+ * into a reusable byte buffer, which is written to the file in large chunks.
+ * The buffer is flushed when it fills up, when a run completes, when output
+ * has been held back for longer than FLUSH_INTERVAL_NANOS, and on close.
+ *
+ * Trajectory records go to a TrajectorySink. By default the sink writes them
+ * into this output file as tab-separated text; setTrajectorySink() sends them
+ * elsewhere, ie) to a BinaryTrajectoryWriter, or through an
+ * AsyncTrajectorySink to a writer thread. Either way the sink is flushed
+ * before the fire counts of a run are written.
+ *
+ * The checkpoint of the output is the length of the file once everything
+ * buffered has been written; resuming cuts the file back to that length.
+ * Only text trajectories written into the output file can be checkpointed.
+ *
  * @author loganlinn
  *
  */
-public class SimulationOutput {
+public class SimulationOutput implements Checkpointable {
 	public static final String DELIMITER = "\t";
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long FLUSH_INTERVAL_NANOS = 1000000000L;
+	private static final int RECORDS_PER_TIME_CHECK = 1024;
+	private static final byte TAB = '\t';
+	private static final byte NEWLINE = '\n';
+
 	private File file;
-	private OutputStreamWriter out;
+	private FileOutputStream out;
 	private Simulation simulation;
 
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int count = 0; // Number of bytes used in buffer
+	private final StringBuilder doubleText = new StringBuilder(32);
+	private final byte[] digits = new byte[20]; // Scratch for number formatting
+	private long lastFlushTime = System.nanoTime();
+	private int recordsSinceTimeCheck = 0;
+
+	private TrajectorySink trajectory = new TextTrajectory();
+	private int[] watchedPopulations = new int[0];
+
+	/**
+	 * Writes trajectory records into the output file as tab-separated text
+	 */
+	private class TextTrajectory implements TrajectorySink {
+		@Override
+		public void record(double time, int[] populations) throws IOException {
+			appendDouble(time);
+			for (int population : populations) {
+				appendByte(TAB);
+				appendLong(population);
+			}
+			appendByte(NEWLINE);
+
+			// Flush output that has been held back for too long
+			if (++recordsSinceTimeCheck == RECORDS_PER_TIME_CHECK) {
+				recordsSinceTimeCheck = 0;
+				if (System.nanoTime() - lastFlushTime > FLUSH_INTERVAL_NANOS) {
+					SimulationOutput.this.flush();
+				}
+			}
+		}
+
+		@Override
+		public void endRun() throws IOException {
+		}
+
+		@Override
+		public void flush() throws IOException {
+			SimulationOutput.this.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			SimulationOutput.this.flush();
+		}
+	}
+
 	/**
 	 * SimulationOutput constructor
+	 *
 	 * @param simulation
 	 * @param filePath
-	 * @throws UnsupportedEncodingException
 	 * @throws FileNotFoundException
 	 */
 	public SimulationOutput(Simulation simulation, String filePath)
-			throws UnsupportedEncodingException, FileNotFoundException {
+			throws FileNotFoundException {
+		this(simulation, filePath, false);
+	}
+
+	/**
+	 * SimulationOutput constructor
+	 *
+	 * @param simulation
+	 * @param filePath
+	 * @param append
+	 *            whether to keep the file's contents, ie) to resume from a
+	 *            checkpoint
+	 * @throws FileNotFoundException
+	 */
+	public SimulationOutput(Simulation simulation, String filePath,
+			boolean append) throws FileNotFoundException {
 		this.simulation = simulation;
 		file = new File(filePath);
-		out = new OutputStreamWriter(new FileOutputStream(file), "ASCII");
+		out = new FileOutputStream(file, append);
 	}
 
 	/**
 	 * Called when one of the watched species has a change in population
 	 */
 	public void populationChanged() {
-		StringBuffer buffer = new StringBuffer();
-		buffer.append(simulation.getCurrentTime());
+		populationChanged(simulation.getCurrentTime());
+	}
 
-		for (int population : simulation.getPopulationsToOutput()) {
-			buffer.append(DELIMITER);
-			buffer.append(population);
+	/**
+	 * Records the watched species' current populations at the given time. Used
+	 * when sampling on a time grid, where the recorded time is a grid point
+	 * rather than the time of the last event.
+	 *
+	 * @param time
+	 */
+	public void populationChanged(double time) {
+		int numWatched = simulation.getSpeciesToOutput().size();
+		if (watchedPopulations.length != numWatched) {
+			watchedPopulations = new int[numWatched];
 		}
+		simulation.getPopulationsToOutput(watchedPopulations);
 
 		try {
-			out.write(buffer.toString() + "\n");
-			out.flush();
+			trajectory.record(time, watchedPopulations);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		
-		
 	}
 
 	/**
 	 * Called when a simulation run is completed
 	 */
 	public void simulationComplete() {
+		simulationComplete(simulation.getReactionFireCounts());
+	}
+
+	/**
+	 * Called when a simulation run is completed, with the run's fire counts
+	 *
+	 * @param fireCounts
+	 */
+	public void simulationComplete(long[] fireCounts) {
 		/**
 		 * Output how many times each reaction fired
 		 */
 		try {
-			for (long fireCount : simulation.getReactionFireCounts()) {
-				out.write(fireCount + "\n");
+			// The sink may still be writing the run's records, possibly into
+			// this output's buffer
+			trajectory.endRun();
+			trajectory.flush();
+			for (long fireCount : fireCounts) {
+				appendLong(fireCount);
+				appendByte(NEWLINE);
 			}
-			out.flush();
+			flush();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-	
+
 	/**
 	 * Direct access to writer
 	 * @param output
 	 */
 	public void write(String output){
 		try {
-			out.write(output);
-			out.flush();
+			appendString(output);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		
+
 	}
-	
+
 	/**
 	 * Direct access to writer. Writes with a new line character
 	 * @param output
 	 */
 	public void writeln(String output){
 		try {
-			out.write(output+"\n");
-			out.flush();
+			appendString(output);
+			appendByte(NEWLINE);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		
+
+	}
+
+	/**
+	 * Writes the buffered output to the file
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+		lastFlushTime = System.nanoTime();
+	}
+
+	/**
+	 * Forces the written output to the disk. Safe to call from another
+	 * thread, ie) before a checkpoint pointing into the file is kept.
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		out.getFD().sync();
+	}
+
+	/**
+	 * Writes the buffered output and then the file length
+	 */
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		if (!(trajectory instanceof TextTrajectory)) {
+			throw new IOException(
+					"Only text trajectories can be checkpointed");
+		}
+		flush();
+		out.writeLong(this.out.getChannel().position());
+	}
+
+	/**
+	 * Cuts the file back to the length it had at the checkpoint. Output
+	 * written after that is dropped and written again by the resumed run.
+	 */
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		long length = in.readLong();
+		if (length > file.length()) {
+			throw new IOException("Output file is shorter than checkpointed");
+		}
+		count = 0;
+		out.getChannel().truncate(length);
+	}
+
+	/**
+	 * Appends one byte, flushing first if the buffer is full
+	 */
+	private void appendByte(byte b) throws IOException {
+		if (count == buffer.length) {
+			flush();
+		}
+		buffer[count++] = b;
+	}
+
+	/**
+	 * Appends the decimal digits of a number without creating a String
+	 */
+	private void appendLong(long value) throws IOException {
+		if (buffer.length - count < digits.length + 1) {
+			flush();
+		}
+		if (value < 0) {
+			buffer[count++] = '-';
+		} else {
+			value = -value; // Work on negatives so Long.MIN_VALUE fits
+		}
+		int n = 0;
+		do {
+			digits[n++] = (byte) ('0' - (value % 10));
+			value /= 10;
+		} while (value != 0);
+		while (n > 0) {
+			buffer[count++] = digits[--n];
+		}
+	}
+
+	/**
+	 * Appends a double in the same format as Double.toString(), reusing one
+	 * StringBuilder for the conversion
+	 */
+	private void appendDouble(double value) throws IOException {
+		doubleText.setLength(0);
+		doubleText.append(value);
+		int length = doubleText.length();
+		if (buffer.length - count < length) {
+			flush();
+		}
+		for (int i = 0; i < length; i++) {
+			buffer[count++] = (byte) doubleText.charAt(i);
+		}
+	}
+
+	/**
+	 * Appends an ASCII string
+	 */
+	private void appendString(String output) throws IOException {
+		int length = output.length();
+		for (int i = 0; i < length; i++) {
+			appendByte((byte) output.charAt(i));
+		}
+	}
+
+	/**
+	 * Sends trajectory records to another sink. The sink is closed together
+	 * with this output.
+	 *
+	 * @param trajectory
+	 */
+	public void setTrajectorySink(TrajectorySink trajectory) {
+		this.trajectory = trajectory;
+	}
+
+	/**
+	 * @return the sink trajectory records go to
+	 */
+	public TrajectorySink getTrajectorySink() {
+		return trajectory;
 	}
-	
+
 	/**
 	 * Closes output stream
 	 * @throws IOException
 	 */
 	public void closeOutput() throws IOException{
+		trajectory.close();
+		flush();
 		out.close();
 	}
-	
+
 	@Override
 	public void finalize() throws Throwable{
-		closeOutput(); // Close the output stream		
+		closeOutput(); // Close the output stream
 		super.finalize(); // Call super finalize because we override it
 	}
-	
+
 }
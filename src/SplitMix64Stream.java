@@ -0,0 +1,68 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * SplitMix64 random numbers (Steele, Lea & Flood), the generator behind
+ * java.util.SplittableRandom. Very fast with a single word of state, and
+ * split() derives a new stream with a different increment.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class SplitMix64Stream extends RandomStream {
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private long state;
+	private long gamma;
+
+	public SplitMix64Stream(long seed) {
+		setSeed(seed);
+	}
+
+	private SplitMix64Stream(long state, long gamma) {
+		this.state = state;
+		this.gamma = gamma;
+	}
+
+	@Override
+	public long nextLong() {
+		state += gamma;
+		return mix64(state);
+	}
+
+	@Override
+	public void setSeed(long seed) {
+		state = seed;
+		gamma = GOLDEN_GAMMA;
+	}
+
+	@Override
+	public RandomStream split() {
+		return new SplitMix64Stream(nextLong(), mixGamma(state += gamma));
+	}
+
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeLong(state);
+		out.writeLong(gamma);
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		state = in.readLong();
+		gamma = in.readLong();
+	}
+
+	/**
+	 * Derives an odd increment with enough bit transitions, as
+	 * SplittableRandom does
+	 */
+	private static long mixGamma(long z) {
+		z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+		z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		int transitions = Long.bitCount(z ^ (z >>> 1));
+		return (transitions < 24) ? z ^ 0xAAAAAAAAAAAAAAAAL : z;
+	}
+}
@@ -0,0 +1,375 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Explicit tau-leaping (Gillespie; Cao, Gillespie & Petzold). Instead of one
+ * event at a time, each step leaps over an interval tau in which every
+ * reaction fires a Poisson distributed number of times, with tau chosen so no
+ * propensity is expected to change by more than a fraction EPSILON. Large
+ * populations then take orders of magnitude fewer steps than exact SSA.
+ *
+ * To keep populations from going negative, reactions within CRITICAL_FIRINGS
+ * firings of exhausting a reactant are critical: they are not leaped, but
+ * fire at most once per step at an exactly sampled time. A leap that still
+ * drives a population negative is retried with half the step. When a leap
+ * would be no longer than a few exact steps, the engine takes SSA_STEPS exact
+ * direct-method steps instead.
+ *
+ * @author loganlinn
+ *
+ */
+public class TauLeapingEngine implements SimulationEngine {
+	private static final double EPSILON = 0.03;
+	private static final int CRITICAL_FIRINGS = 10;
+	protected static final double SSA_THRESHOLD = 10; // in mean exact steps
+	protected static final int SSA_STEPS = 100;
+
+	protected final Simulation simulation;
+	protected final ReactionNetwork network;
+	protected final int numSpecies;
+	protected final double[] propensities;
+	protected final boolean[] critical;
+
+	// Species' highest reaction order as a reactant, and their coefficient in
+	// reactions of that order; used for the step size
+	private final int[] highestOrders;
+	private final int[] highestOrderCoefficients;
+	private final double[] meanChanges; // Expected change rate per species
+	private final double[] changeVariances; // Variance of the change rate
+
+	// The planned step: firings per reaction and the resulting populations
+	private final long[] firings;
+	private final int[] stepPopulations;
+	private double stepTime;
+	private boolean planned = false;
+	protected int ssaStepsLeft = 0; // Exact steps to take before leaping again
+
+	public TauLeapingEngine(Simulation simulation) {
+		this.simulation = simulation;
+		network = simulation.getNetwork();
+		numSpecies = simulation.getPopulations().length;
+		int numReactions = network.getNumReactions();
+		propensities = new double[numReactions];
+		critical = new boolean[numReactions];
+		firings = new long[numReactions];
+		stepPopulations = new int[numSpecies];
+		meanChanges = new double[numSpecies];
+		changeVariances = new double[numSpecies];
+
+		/*
+		 * Find each species' highest order reaction
+		 */
+		highestOrders = new int[numSpecies];
+		highestOrderCoefficients = new int[numSpecies];
+		int[] reactantOffsets = network.getReactantOffsets();
+		int[] reactantSpecies = network.getReactantSpecies();
+		int[] reactantCoefficients = network.getReactantCoefficients();
+		for (int r = 0; r < numReactions; r++) {
+			int order = 0;
+			for (int i = reactantOffsets[r]; i < reactantOffsets[r + 1]; i++) {
+				order += reactantCoefficients[i];
+			}
+			for (int i = reactantOffsets[r]; i < reactantOffsets[r + 1]; i++) {
+				int species = reactantSpecies[i];
+				if (order > highestOrders[species]) {
+					highestOrders[species] = order;
+					highestOrderCoefficients[species] = reactantCoefficients[i];
+				} else if (order == highestOrders[species]
+						&& reactantCoefficients[i] > highestOrderCoefficients[species]) {
+					highestOrderCoefficients[species] = reactantCoefficients[i];
+				}
+			}
+		}
+	}
+
+	@Override
+	public void reset() {
+		planned = false;
+		ssaStepsLeft = 0;
+	}
+
+	@Override
+	public double nextEventTime() {
+		if (!planned) {
+			stepTime = planStep();
+			planned = true;
+		}
+		return stepTime;
+	}
+
+	/**
+	 * Propensities are recomputed for every step, so only the exact steps
+	 * left to take are written
+	 */
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeInt(ssaStepsLeft);
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		ssaStepsLeft = in.readInt();
+		planned = false;
+	}
+
+	@Override
+	public void fireNext() {
+		simulation.setCurrentTime(nextEventTime());
+		planned = false;
+		applyStep();
+	}
+
+	/**
+	 * Applies the planned step to the populations and the fire counts
+	 */
+	protected void applyStep() {
+		int[] populations = simulation.getPopulations();
+		System.arraycopy(stepPopulations, 0, populations, 0, numSpecies);
+
+		// Count the firings and record the new state once for the step
+		boolean watchedChanged = false;
+		Simulation.Reaction[] reactions = simulation.getReactions();
+		for (int r = 0; r < firings.length; r++) {
+			if (firings[r] > 0) {
+				reactions[r].setFireCount(reactions[r].getFireCount()
+						+ firings[r]);
+				watchedChanged |= reactions[r].changesWatchedSpecies();
+			}
+		}
+		if (watchedChanged) {
+			simulation.populationChanged();
+		}
+	}
+
+	/**
+	 * Plans the next step: either a leap or one exact step. Fills firings and
+	 * stepPopulations.
+	 *
+	 * @return the time the step ends
+	 */
+	protected double planStep() {
+		double now = simulation.getCurrentTime();
+		double remaining = simulation.getTotalTime() - now;
+		if (remaining <= 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		int[] populations = simulation.getPopulations();
+		RandomStream random = simulation.getRandom();
+
+		/*
+		 * Propensities, and which reactions are critical
+		 */
+		double totalPropensity = 0;
+		double criticalPropensity = 0;
+		for (int r = 0; r < propensities.length; r++) {
+			double propensity = network.propensity(r, populations);
+			propensities[r] = propensity;
+			totalPropensity += propensity;
+			critical[r] = propensity > 0
+					&& firingsLeft(r, populations) < CRITICAL_FIRINGS;
+			if (critical[r]) {
+				criticalPropensity += propensity;
+			}
+		}
+		if (totalPropensity == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		double leap = 0;
+		if (ssaStepsLeft == 0) {
+			leap = leapSize(populations, critical);
+			if (leap < SSA_THRESHOLD / totalPropensity) {
+				ssaStepsLeft = SSA_STEPS;
+			}
+		}
+
+		if (ssaStepsLeft > 0) {
+			/*
+			 * Exact step, as in the direct method
+			 */
+			ssaStepsLeft--;
+			double tau = random.nextExponential() / totalPropensity;
+			int reactionId = select(random.nextDouble() * totalPropensity,
+					null);
+			startStep(populations);
+			fire(reactionId, 1);
+			return now + tau;
+		}
+
+		/*
+		 * Leap, halving the step until no population goes negative
+		 */
+		while (true) {
+			double criticalTau = criticalPropensity > 0 ? random
+					.nextExponential()
+					/ criticalPropensity : Double.POSITIVE_INFINITY;
+			boolean fireCritical = criticalTau < leap;
+			double tau = fireCritical ? criticalTau : leap;
+			if (tau >= remaining) {
+				tau = remaining;
+				fireCritical = false;
+			}
+
+			startStep(populations);
+			if (fireCritical) {
+				fire(select(random.nextDouble() * criticalPropensity, critical),
+						1);
+			}
+			for (int r = 0; r < propensities.length; r++) {
+				if (!critical[r] && propensities[r] > 0) {
+					long count = random.nextPoisson(propensities[r] * tau);
+					if (count > 0) {
+						fire(r, count);
+					}
+				}
+			}
+
+			if (isStepValid()) {
+				return now + tau;
+			}
+			leap /= 2;
+		}
+	}
+
+	/**
+	 * Cao, Gillespie & Petzold's step size: the largest tau for which the
+	 * expected change and the standard deviation of the change of every
+	 * reactant species stay below max(EPSILON * x / g, 1)
+	 *
+	 * @param populations
+	 * @param excluded
+	 *            reactions left out of the leap, ie) the critical ones
+	 * @return the step size, infinite if no included reaction can fire
+	 */
+	protected double leapSize(int[] populations, boolean[] excluded) {
+		Arrays.fill(meanChanges, 0);
+		Arrays.fill(changeVariances, 0);
+		int[] changeOffsets = network.getChangeOffsets();
+		int[] changeSpecies = network.getChangeSpecies();
+		int[] changeAmounts = network.getChangeAmounts();
+		for (int r = 0; r < propensities.length; r++) {
+			double propensity = propensities[r];
+			if (propensity == 0 || excluded[r]) {
+				continue;
+			}
+			for (int i = changeOffsets[r]; i < changeOffsets[r + 1]; i++) {
+				int amount = changeAmounts[i];
+				meanChanges[changeSpecies[i]] += amount * propensity;
+				changeVariances[changeSpecies[i]] += amount * amount
+						* propensity;
+			}
+		}
+
+		double tau = Double.POSITIVE_INFINITY;
+		for (int s = 0; s < numSpecies; s++) {
+			if (highestOrders[s] == 0) {
+				continue; // Not a reactant, does not affect propensities
+			}
+			double bound = Math.max(EPSILON * populations[s]
+					/ relativeChange(s, populations[s]), 1);
+			if (meanChanges[s] != 0) {
+				tau = Math.min(tau, bound / Math.abs(meanChanges[s]));
+			}
+			if (changeVariances[s] > 0) {
+				tau = Math.min(tau, bound * bound / changeVariances[s]);
+			}
+		}
+		return tau;
+	}
+
+	/**
+	 * The factor g relating a relative change in a species' population to the
+	 * relative change of its highest order reaction's propensity
+	 */
+	private double relativeChange(int species, int population) {
+		double x1 = Math.max(population - 1, 1);
+		double x2 = Math.max(population - 2, 1);
+		int coefficient = highestOrderCoefficients[species];
+		switch (highestOrders[species]) {
+		case 1:
+			return 1;
+		case 2:
+			return coefficient == 1 ? 2 : 2 + 1 / x1;
+		case 3:
+			if (coefficient == 1) {
+				return 3;
+			} else if (coefficient == 2) {
+				return 1.5 * (2 + 1 / x1);
+			}
+			return 3 + 1 / x1 + 2 / x2;
+		default:
+			return highestOrders[species];
+		}
+	}
+
+	/**
+	 * @return how many more times a reaction can fire before one of its
+	 *         consumed species runs out
+	 */
+	protected long firingsLeft(int reactionId, int[] populations) {
+		long firingsLeft = Long.MAX_VALUE;
+		int[] changeOffsets = network.getChangeOffsets();
+		int[] changeSpecies = network.getChangeSpecies();
+		int[] changeAmounts = network.getChangeAmounts();
+		for (int i = changeOffsets[reactionId]; i < changeOffsets[reactionId + 1]; i++) {
+			if (changeAmounts[i] < 0) {
+				firingsLeft = Math.min(firingsLeft,
+						populations[changeSpecies[i]] / -changeAmounts[i]);
+			}
+		}
+		return firingsLeft;
+	}
+
+	/**
+	 * Picks the reaction where the cumulative propensity passes the target
+	 *
+	 * @param target
+	 * @param included
+	 *            reactions to pick from, or null for all reactions
+	 * @return the reaction ID
+	 */
+	protected int select(double target, boolean[] included) {
+		double sum = 0;
+		int last = -1; // Last candidate, in case of round-off
+		for (int r = 0; r < propensities.length; r++) {
+			if (propensities[r] > 0 && (included == null || included[r])) {
+				sum += propensities[r];
+				if (target < sum) {
+					return r;
+				}
+				last = r;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Starts planning a step from the given populations
+	 */
+	protected void startStep(int[] populations) {
+		Arrays.fill(firings, 0);
+		System.arraycopy(populations, 0, stepPopulations, 0, numSpecies);
+	}
+
+	/**
+	 * Adds firings of a reaction to the planned step
+	 */
+	protected void fire(int reactionId, long count) {
+		firings[reactionId] += count;
+		network.fire(reactionId, stepPopulations, count);
+	}
+
+	/**
+	 * @return true if no population is negative after the planned step
+	 */
+	protected boolean isStepValid() {
+		for (int population : stepPopulations) {
+			if (population < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,44 @@
+import java.io.IOException;
+
+/**
+ * Receives the trajectory of the watched species' populations. The
+ * simulation output hands every recorded state to a sink, so the trajectory
+ * can be written in different formats.
+ * 
+ * @author loganlinn
+ * 
+ */
+public interface TrajectorySink {
+
+	/**
+	 * Records the populations of the watched species at a point in time. The
+	 * array is reused by the caller; copy it to keep it.
+	 * 
+	 * @param time
+	 * @param populations
+	 *            watched populations, in the order of the species to output
+	 * @throws IOException
+	 */
+	public void record(double time, int[] populations) throws IOException;
+
+	/**
+	 * Marks the end of a simulation run
+	 * 
+	 * @throws IOException
+	 */
+	public void endRun() throws IOException;
+
+	/**
+	 * Writes out anything the sink is holding back
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Flushes and releases the sink
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
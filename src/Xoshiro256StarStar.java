@@ -0,0 +1,103 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * xoshiro256** random numbers (Blackman & Vigna). 256 bits of state with a
+ * period of 2^256 - 1; jump() advances the stream by 2^128 numbers, so
+ * successive jumps give non-overlapping streams for parallel runs.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class Xoshiro256StarStar extends RandomStream {
+	private static final long[] JUMP = { 0x180EC6D33CFD0ABAL,
+			0xD5A61266F0C9392CL, 0xA9582618E03FC9AAL, 0x39ABDC4529B1661CL };
+
+	private long s0, s1, s2, s3;
+
+	public Xoshiro256StarStar(long seed) {
+		setSeed(seed);
+	}
+
+	private Xoshiro256StarStar(long s0, long s1, long s2, long s3) {
+		this.s0 = s0;
+		this.s1 = s1;
+		this.s2 = s2;
+		this.s3 = s3;
+	}
+
+	@Override
+	public long nextLong() {
+		long result = Long.rotateLeft(s1 * 5, 7) * 9;
+		long t = s1 << 17;
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+		return result;
+	}
+
+	/**
+	 * Expands the seed with SplitMix64, which never gives the all-zero state
+	 */
+	@Override
+	public void setSeed(long seed) {
+		long z = seed;
+		s0 = mix64(z += 0x9E3779B97F4A7C15L);
+		s1 = mix64(z += 0x9E3779B97F4A7C15L);
+		s2 = mix64(z += 0x9E3779B97F4A7C15L);
+		s3 = mix64(z += 0x9E3779B97F4A7C15L);
+	}
+
+	/**
+	 * Returns a stream starting at the current state and jumps this stream
+	 * ahead by 2^128 numbers
+	 */
+	@Override
+	public RandomStream split() {
+		Xoshiro256StarStar stream = new Xoshiro256StarStar(s0, s1, s2, s3);
+		jump();
+		return stream;
+	}
+
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeLong(s0);
+		out.writeLong(s1);
+		out.writeLong(s2);
+		out.writeLong(s3);
+	}
+
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException {
+		s0 = in.readLong();
+		s1 = in.readLong();
+		s2 = in.readLong();
+		s3 = in.readLong();
+	}
+
+	/**
+	 * Advances the stream by 2^128 numbers
+	 */
+	public void jump() {
+		long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
+		for (long jump : JUMP) {
+			for (int b = 0; b < 64; b++) {
+				if ((jump & (1L << b)) != 0) {
+					t0 ^= s0;
+					t1 ^= s1;
+					t2 ^= s2;
+					t3 ^= s3;
+				}
+				nextLong();
+			}
+		}
+		s0 = t0;
+		s1 = t1;
+		s2 = t2;
+		s3 = t3;
+	}
+}